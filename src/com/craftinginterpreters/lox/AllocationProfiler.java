@@ -0,0 +1,132 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Attributes the allocations a script makes to the line and the Lox function
+// that made them, for finding out which part of a script is eating memory
+// when the Java heap only shows Doubles and Strings. Enable it with
+// -Dlox.profile.alloc=N to sample about one allocation in N, and the top
+// sites are printed when the script ends.
+//
+// Tracked are the frames that calls push, the strings that + builds, the
+// argument lists of calls that still take one (natives, generators and the
+// like; see LoxFunction.takesStack()) and the numbers that arithmetic boxes.
+// Frames are carved out of the interpreter's stack rather than allocated, so
+// their bytes are the slots they take up there. The other sizes are what the
+// JVM would use with compressed pointers.
+//
+// Only the slow path of a sample takes a lock. The countdown between samples
+// is randomized, so a loop that allocates in a fixed pattern can't keep
+// hitting or missing the same site, and each sample stands for N
+// allocations. Tasks spawned by a script share its profiler and, as with the
+// budget, their countdown updates aren't synchronized.
+class AllocationProfiler {
+    private static final int TOP = 10;
+    private static final int RATE = Integer.getInteger("lox.profile.alloc", 0);
+    // Lets the closure compiler leave out the profiling code when it's off.
+    static final boolean ENABLED = RATE > 0;
+
+    enum Kind {
+        FRAME("frame"),
+        STRING("string"),
+        ARGUMENTS("arguments"),
+        NUMBER("number");
+
+        final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+    }
+
+    private record Site(Kind kind, int line, String function) {}
+
+    private static class Counts {
+        long count;
+        long bytes;
+    }
+
+    private final int rate;
+    private int countdown;
+    private final Map<Site, Counts> sites = new HashMap<>();
+
+    AllocationProfiler(int rate) {
+        this.rate = rate;
+        this.countdown = next();
+    }
+
+    // Returns a profiler sampling at the rate in the lox.profile.alloc system
+    // property, or null if it isn't set.
+    static AllocationProfiler fromProperties() {
+        return ENABLED ? new AllocationProfiler(RATE) : null;
+    }
+
+    // Records the value an operator or call built at the site, if building it
+    // allocated.
+    void allocated(Interpreter interpreter, Token site, Object value) {
+        if (value instanceof Double) {
+            allocated(interpreter, site, Kind.NUMBER, 16);
+        } else if (value instanceof String string) {
+            allocated(interpreter, site, Kind.STRING, 24 + array(string.length(), 1));
+        } else if (value instanceof List<?> list) {
+            allocated(interpreter, site, Kind.ARGUMENTS, 24 + array(list.size(), 4));
+        }
+    }
+
+    void allocated(Interpreter interpreter, Token site, Kind kind, long bytes) {
+        if (--countdown > 0) return;
+        countdown = next();
+        sample(new Site(kind, site.line, name(interpreter.function)), bytes);
+    }
+
+    private synchronized void sample(Site site, long bytes) {
+        Counts counts = sites.computeIfAbsent(site, key -> new Counts());
+        counts.count += rate;
+        counts.bytes += bytes * rate;
+    }
+
+    // Prints the sites that allocated the most bytes and the most objects.
+    synchronized void report(PrintStream out) {
+        if (sites.isEmpty()) return;
+
+        List<Map.Entry<Site, Counts>> entries = new ArrayList<>(sites.entrySet());
+        out.println("Allocation sites, sampling 1 in " + rate + ":");
+        entries.sort(Comparator.comparingLong(
+                (Map.Entry<Site, Counts> entry) -> entry.getValue().bytes).reversed());
+        print(out, "By bytes", entries);
+        entries.sort(Comparator.comparingLong(
+                (Map.Entry<Site, Counts> entry) -> entry.getValue().count).reversed());
+        print(out, "By count", entries);
+    }
+
+    private static void print(PrintStream out, String title,
+                              List<Map.Entry<Site, Counts>> entries) {
+        out.println(title + ":");
+        out.println(String.format("  %12s %10s  %s", "bytes", "count", "site"));
+        for (Map.Entry<Site, Counts> entry : entries.subList(0, Math.min(TOP, entries.size()))) {
+            Site site = entry.getKey();
+            out.println(String.format("  %12d %10d  %s at line %d in %s",
+                    entry.getValue().bytes, entry.getValue().count,
+                    site.kind().label, site.line(), site.function()));
+        }
+    }
+
+    // The size of an array of that many elements, with its header and padding.
+    private static long array(int length, int elementSize) {
+        return (16 + (long) length * elementSize + 7) & ~7;
+    }
+
+    private static String name(LoxFunction function) {
+        return function == null ? "script" : function.toString();
+    }
+
+    private int next() {
+        return rate == 1 ? 1 : 1 + ThreadLocalRandom.current().nextInt(2 * rate - 1);
+    }
+}
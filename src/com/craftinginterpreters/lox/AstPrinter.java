@@ -66,10 +66,6 @@ class AstPrinter  implements Expr.Visitor<String>{
         return null;
     }
 
-    @Override
-    public Object visitBinary(Expr.Binary expr) {
-        return null;
-    }
 
     private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
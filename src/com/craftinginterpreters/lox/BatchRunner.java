@@ -0,0 +1,185 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+// Runs many scripts inside one JVM so that startup is paid once for the whole
+// batch. Every script gets its own Interpreter, output streams and error state,
+// so they can run side by side on a work-stealing pool.
+class BatchRunner {
+    static class Result {
+        final Path script;
+        final int exitCode;
+        final String out;
+        final String err;
+        final long nanos;
+
+        Result(Path script, int exitCode, String out, String err, long nanos) {
+            this.script = script;
+            this.exitCode = exitCode;
+            this.out = out;
+            this.err = err;
+            this.nanos = nanos;
+        }
+    }
+
+    // Runs every script named by the source and prints a summary report.
+    // Returns the worst exit code seen, so a clean batch exits with 0.
+    static int run(Path source) throws IOException {
+        List<Path> scripts = scripts(source);
+        Result[] results = new Result[scripts.size()];
+
+        long start = System.nanoTime();
+        new ForkJoinPool().invoke(new Batch(scripts, results, 0, scripts.size()));
+        long wall = System.nanoTime() - start;
+
+        int worst = report(results, wall, System.out);
+        // The memo caches of every script in the batch, as Lox.runFile()
+        // prints them for one.
+        Memo.report(System.err);
+        return worst;
+    }
+
+    // A directory contributes every .lox file beneath it. Anything else is read
+    // as a manifest: one script per line, relative to the manifest, with blank
+    // lines and lines starting with '#' skipped.
+    static List<Path> scripts(Path source) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        if (Files.isDirectory(source)) {
+            try (Stream<Path> files = Files.walk(source)) {
+                files.filter(path -> path.toString().endsWith(".lox"))
+                        .filter(Files::isRegularFile)
+                        .sorted()
+                        .forEach(scripts::add);
+            }
+        } else {
+            Path base = source.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(source)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                scripts.add(base.resolve(line));
+            }
+        }
+        return scripts;
+    }
+
+    static Result runScript(Path script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream outStream = new PrintStream(out, true, StandardCharsets.UTF_8);
+        PrintStream errStream = new PrintStream(err, true, StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        int exitCode;
+        Interpreter interpreter = Lox.newInterpreter(outStream);
+        try {
+            byte[] bytes = Files.readAllBytes(script);
+            exitCode = Lox.runIsolated(new String(bytes, Charset.defaultCharset()),
+                    interpreter, errStream);
+        } catch (IOException error) {
+            errStream.println("Could not read script: " + error.getMessage());
+            exitCode = 66;
+        } catch (RuntimeException | StackOverflowError error) {
+            // A bug or a runaway recursion in one script must not take the
+            // rest of the batch down with it.
+            errStream.println("Internal error: " + error);
+            exitCode = 70;
+        }
+        long nanos = System.nanoTime() - start;
+
+        // Allocation sites are lines of this script, so they are reported
+        // with its output.
+        if (interpreter.profiler != null) interpreter.profiler.report(errStream);
+        if (interpreter.coverage != null) {
+            try {
+                interpreter.coverage.report(script);
+            } catch (IOException error) {
+                errStream.println("Could not write coverage: " + error.getMessage());
+            }
+        }
+
+        return new Result(script, exitCode,
+                out.toString(StandardCharsets.UTF_8),
+                err.toString(StandardCharsets.UTF_8), nanos);
+    }
+
+    static int report(Result[] results, long wallNanos, PrintStream report) {
+        int worst = 0;
+        int compileErrors = 0;
+        int runtimeErrors = 0;
+        int otherErrors = 0;
+        long busyNanos = 0;
+
+        for (Result result : results) {
+            report.printf("== %s  exit %d  %.3f ms%n",
+                    result.script, result.exitCode, result.nanos / 1e6);
+            if (!result.out.isEmpty()) {
+                report.println("-- stdout");
+                report.print(result.out);
+            }
+            if (!result.err.isEmpty()) {
+                report.println("-- stderr");
+                report.print(result.err);
+            }
+
+            switch (result.exitCode) {
+                case 0 -> { }
+                case 65 -> compileErrors++;
+                case 70 -> runtimeErrors++;
+                default -> otherErrors++;
+            }
+            worst = Math.max(worst, result.exitCode);
+            busyNanos += result.nanos;
+        }
+
+        int passed = results.length - compileErrors - runtimeErrors - otherErrors;
+        report.println();
+        report.printf("%d scripts: %d passed, %d compile errors, " +
+                        "%d runtime errors, %d other%n",
+                results.length, passed, compileErrors, runtimeErrors, otherErrors);
+        report.printf("wall %.3f ms, script time %.3f ms, parallelism %.2fx%n",
+                wallNanos / 1e6, busyNanos / 1e6,
+                wallNanos == 0 ? 0.0 : (double) busyNanos / wallNanos);
+        return worst;
+    }
+
+    // Splits the range in halves down to single scripts. A script is far more
+    // work than a task, so there's no point batching them up. Idle workers
+    // steal the other halves, which keeps every core busy even when some
+    // scripts run far longer than others.
+    private static class Batch extends RecursiveAction {
+        private final List<Path> scripts;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        Batch(List<Path> scripts, Result[] results, int from, int to) {
+            this.scripts = scripts;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) results[from] = runScript(scripts.get(from));
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new Batch(scripts, results, from, middle),
+                    new Batch(scripts, results, middle, to));
+        }
+    }
+}
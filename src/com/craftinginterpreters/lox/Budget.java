@@ -0,0 +1,81 @@
+package com.craftinginterpreters.lox;
+
+// Limits on how much work a script may do: a number of ticks, a wall-clock
+// deadline and a number of environments allocated. A tick is a loop
+// iteration or a function call, which between them bound everything else a
+// script can do, so a runaway loop or recursion always runs into the limit.
+//
+// Ticks are the only thing counted on the hot path, as a single decrement
+// of countdown. Every CHECK_INTERVAL ticks the slow path settles the count
+// and checks the deadline and environment limits. Exceeding any limit throws
+// a BudgetExceeded, which is reported like any other runtime error and which
+// host code can catch to tell a timeout apart from a failing script.
+//
+// Tasks spawned by a script share its budget. Their updates aren't
+// synchronized, so under contention the limits are approximate.
+class Budget {
+    private static final int CHECK_INTERVAL = 1024;
+
+    static class BudgetExceeded extends RuntimeError {
+        BudgetExceeded(Token token, String message) {
+            super(token, message);
+        }
+    }
+
+    private long ticks;
+    private final long deadline;
+    private long environments;
+    private int countdown;
+    private int chunk;
+
+    // Pass Long.MAX_VALUE for any limit that shouldn't apply.
+    Budget(long ticks, long millis, long environments) {
+        this.ticks = ticks;
+        this.deadline = millis == Long.MAX_VALUE
+                ? Long.MAX_VALUE : System.nanoTime() + millis * 1_000_000;
+        this.environments = environments;
+        this.chunk = (int) Math.min(CHECK_INTERVAL, ticks);
+        this.countdown = chunk;
+    }
+
+    // Builds a budget from the lox.budget.ticks, lox.budget.millis and
+    // lox.budget.environments system properties, or returns null if none is
+    // set.
+    static Budget fromProperties() {
+        Long ticks = Long.getLong("lox.budget.ticks");
+        Long millis = Long.getLong("lox.budget.millis");
+        Long environments = Long.getLong("lox.budget.environments");
+        if (ticks == null && millis == null && environments == null) return null;
+
+        return new Budget(ticks == null ? Long.MAX_VALUE : ticks,
+                millis == null ? Long.MAX_VALUE : millis,
+                environments == null ? Long.MAX_VALUE : environments);
+    }
+
+    void tick(Token token) {
+        if (countdown-- > 0) return;
+        check(token);
+    }
+
+    void allocateEnvironment() {
+        environments--;
+    }
+
+    // Runs on the tick after a chunk is used up, so with a limit of N ticks
+    // exactly N run and the next one throws. Otherwise that tick starts the
+    // next chunk.
+    private void check(Token token) {
+        ticks -= chunk;
+        if (ticks <= 0) {
+            throw new BudgetExceeded(token, "Instruction budget exceeded.");
+        }
+        if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+            throw new BudgetExceeded(token, "Time budget exceeded.");
+        }
+        if (environments < 0) {
+            throw new BudgetExceeded(token, "Environment budget exceeded.");
+        }
+        chunk = (int) Math.min(CHECK_INTERVAL, ticks);
+        countdown = chunk - 1;
+    }
+}
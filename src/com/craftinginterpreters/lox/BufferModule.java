@@ -0,0 +1,72 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.NativeFunction.longIndex;
+import static com.craftinginterpreters.lox.NativeFunction.number;
+import static com.craftinginterpreters.lox.NativeFunction.string;
+
+// Off-heap numeric buffers. See LoxBuffer.
+public class BufferModule implements NativeModule {
+    @Override
+    public Set<String> globals() {
+        return Set.of("buffer", "mapfile", "fill", "copy", "sum", "min", "max");
+    }
+
+    @Override
+    public Object create(String name) {
+        return switch (name) {
+            case "buffer" -> new NativeFunction(2, (interpreter, arguments) ->
+                    LoxBuffer.allocate(bufferType(arguments.get(0)),
+                            longIndex(arguments.get(1))));
+            case "mapfile" -> new NativeFunction(3, (interpreter, arguments) -> {
+                String path = string(arguments.get(0));
+                long length = arguments.get(2) == null ? -1 : longIndex(arguments.get(2));
+                // Only nil maps the whole file.
+                if (arguments.get(2) != null && length < 0) {
+                    throw new NativeError("Buffer length out of range.");
+                }
+                try {
+                    return LoxBuffer.map(Paths.get(path), bufferType(arguments.get(1)), length);
+                } catch (IOException error) {
+                    throw new NativeError("Could not map '" + path + "': " + error.getMessage());
+                }
+            });
+            case "fill" -> new NativeFunction(2, (interpreter, arguments) -> {
+                buffer(arguments.get(0)).fill(number(arguments.get(1)));
+                return null;
+            });
+            case "copy" -> new NativeFunction(5, (interpreter, arguments) -> {
+                buffer(arguments.get(0)).copy(longIndex(arguments.get(1)),
+                        buffer(arguments.get(2)), longIndex(arguments.get(3)),
+                        longIndex(arguments.get(4)));
+                return null;
+            });
+            case "sum" -> new NativeFunction(1, (interpreter, arguments) ->
+                    buffer(arguments.get(0)).sum());
+            case "min" -> new NativeFunction(1, (interpreter, arguments) ->
+                    buffer(arguments.get(0)).min());
+            case "max" -> new NativeFunction(1, (interpreter, arguments) ->
+                    buffer(arguments.get(0)).max());
+            default -> null;
+        };
+    }
+
+    private static LoxBuffer buffer(Object object) {
+        if (object instanceof LoxBuffer buffer) return buffer;
+        throw new NativeError("Operand must be a buffer.");
+    }
+
+    private static LoxBuffer.Type bufferType(Object object) {
+        if (object instanceof String name) {
+            switch (name) {
+                case "f64": return LoxBuffer.Type.F64;
+                case "i64": return LoxBuffer.Type.I64;
+                case "i32": return LoxBuffer.Type.I32;
+            }
+        }
+        throw new NativeError("Buffer type must be \"f64\", \"i64\" or \"i32\".");
+    }
+}
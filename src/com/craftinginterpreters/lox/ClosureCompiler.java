@@ -0,0 +1,377 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Translates the syntax tree into a tree of Java lambdas, once, before it
+// runs. Each lambda has its operands already compiled and its operator
+// already chosen, so running a node is a single interface call. The visitor
+// instead pays for accept(), the visit method and a switch on the operator
+// every time a node is evaluated.
+//
+// The behavior, including every runtime error and its message, matches
+// Interpreter exactly. Select this mode with -Dlox.mode=closure.
+class ClosureCompiler {
+    // The code is handed the interpreter it runs on rather than capturing
+    // one, since a function compiled by one task may be called by another,
+    // and each has its own stack of locals.
+    interface ExprCode {
+        Object eval(Interpreter interpreter);
+    }
+
+    interface StmtCode {
+        void exec(Interpreter interpreter);
+    }
+
+    StmtCode[] compile(List<Stmt> statements) {
+        StmtCode[] code = new StmtCode[statements.size()];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = compile(statements.get(i));
+        }
+        return code;
+    }
+
+    static void execute(StmtCode[] code, Interpreter interpreter) {
+        for (StmtCode statement : code) {
+            statement.exec(interpreter);
+        }
+    }
+
+    // Marks the statement as run for coverage first. The check is only
+    // compiled in when coverage is on.
+    private StmtCode compile(Stmt stmt) {
+        StmtCode code = compileStatement(stmt);
+        if (!Coverage.ENABLED || stmt.id < 0) return code;
+        int id = stmt.id;
+        return interpreter -> {
+            if (interpreter.coverage != null) interpreter.coverage.hit(id);
+            code.exec(interpreter);
+        };
+    }
+
+    private StmtCode compileStatement(Stmt stmt) {
+        if (stmt instanceof Stmt.Block block) {
+            StmtCode[] body = compile(block.statements);
+            return interpreter -> {
+                if (interpreter.budget != null) interpreter.budget.allocateEnvironment();
+                execute(body, interpreter);
+            };
+        }
+
+        if (stmt instanceof Stmt.Expression expression) {
+            ExprCode value = compile(expression.expression);
+            return value::eval;
+        }
+
+        // A generator's body runs as IR. See LoxGenerator.
+        if (stmt instanceof Stmt.Function function && function.generator) {
+            return define(function.slot, function.name,
+                    interpreter -> new LoxFunction(function));
+        }
+
+        if (stmt instanceof Stmt.Function function) {
+            StmtCode[] body = compile(function.body);
+            return define(function.slot, function.name,
+                    interpreter -> new LoxFunction(function, body));
+        }
+
+        if (stmt instanceof Stmt.If ifStmt) {
+            ExprCode condition = compile(ifStmt.condition);
+            StmtCode thenBranch = compile(ifStmt.thenBranch);
+            int id = ifStmt.id;
+            if (ifStmt.elseBranch == null) {
+                return interpreter -> {
+                    if (interpreter.condition(id, condition.eval(interpreter))) {
+                        thenBranch.exec(interpreter);
+                    }
+                };
+            }
+            StmtCode elseBranch = compile(ifStmt.elseBranch);
+            return interpreter -> {
+                if (interpreter.condition(id, condition.eval(interpreter))) {
+                    thenBranch.exec(interpreter);
+                } else {
+                    elseBranch.exec(interpreter);
+                }
+            };
+        }
+
+        if (stmt instanceof Stmt.Print print) {
+            ExprCode value = compile(print.expression);
+            return interpreter ->
+                    interpreter.out.println(Interpreter.stringify(value.eval(interpreter)));
+        }
+
+        if (stmt instanceof Stmt.Return returnStmt) {
+            if (returnStmt.value == null) {
+                return interpreter -> {
+                    throw new Return(null);
+                };
+            }
+            ExprCode value = compile(returnStmt.value);
+            return interpreter -> {
+                throw new Return(value.eval(interpreter));
+            };
+        }
+
+        if (stmt instanceof Stmt.Var var) {
+            ExprCode initializer = var.initializer == null
+                    ? new Constant(null)
+                    : compile(var.initializer);
+            return define(var.slot, var.name, initializer);
+        }
+
+        // The debugger only works on trees, so its wrappers are simply left
+        // out.
+        if (stmt instanceof Stmt.Breakpoint breakpoint) {
+            return compileStatement(breakpoint.statement);
+        }
+
+        if (stmt instanceof Stmt.While whileStmt) {
+            ExprCode condition = compile(whileStmt.condition);
+            StmtCode body = compile(whileStmt.body);
+            Token keyword = whileStmt.keyword;
+            int id = whileStmt.id;
+            return interpreter -> {
+                while (interpreter.condition(id, condition.eval(interpreter))) {
+                    if (interpreter.budget != null) interpreter.budget.tick(keyword);
+                    body.exec(interpreter);
+                }
+            };
+        }
+
+        // Classes aren't implemented by the interpreter yet either.
+        return interpreter -> { };
+    }
+
+    private ExprCode compile(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            return new Constant(literal.value);
+        }
+
+        if (expr instanceof Expr.Grouping grouping) {
+            return compile(grouping.expression);
+        }
+
+        if (expr instanceof Expr.Variable variable) {
+            int slot = variable.slot;
+            if (slot >= 0) return interpreter -> interpreter.stack[interpreter.base + slot];
+            return interpreter -> interpreter.global(variable);
+        }
+
+        if (expr instanceof Expr.Assign assign) {
+            Token name = assign.name;
+            int slot = assign.slot;
+            int global = assign.global;
+            ExprCode value = compile(assign.value);
+            if (slot >= 0) {
+                return interpreter -> {
+                    Object result = value.eval(interpreter);
+                    interpreter.stack[interpreter.base + slot] = result;
+                    return result;
+                };
+            }
+            return interpreter -> {
+                Object result = value.eval(interpreter);
+                interpreter.globals.assign(global, name, result);
+                return result;
+            };
+        }
+
+        if (expr instanceof Expr.Unary unary) {
+            ExprCode right = compile(unary.right);
+            Token operator = unary.operator;
+            if (unary.numeric) {
+                return profiled(operator, interpreter -> -(double) right.eval(interpreter));
+            }
+            return profiled(operator, switch (operator.type) {
+                case MINUS -> interpreter -> {
+                    Object value = right.eval(interpreter);
+                    Interpreter.checkNumberOperand(operator, value);
+                    return -(double) value;
+                };
+                case BANG -> interpreter -> !Interpreter.isTruthy(right.eval(interpreter));
+                default -> interpreter -> {
+                    right.eval(interpreter);
+                    return null;
+                };
+            });
+        }
+
+        if (expr instanceof Expr.Logical logical) {
+            ExprCode left = compile(logical.left);
+            ExprCode right = compile(logical.right);
+            int id = logical.id;
+            if (logical.operator.type == TokenType.OR) {
+                return interpreter -> {
+                    Object value = left.eval(interpreter);
+                    if (interpreter.decided(id, Interpreter.isTruthy(value))) return value;
+                    return right.eval(interpreter);
+                };
+            }
+            return interpreter -> {
+                Object value = left.eval(interpreter);
+                if (interpreter.decided(id, !Interpreter.isTruthy(value))) return value;
+                return right.eval(interpreter);
+            };
+        }
+
+        if (expr instanceof Expr.Binary binary) {
+            return profiled(binary.operator, binary(binary));
+        }
+
+        if (expr instanceof Expr.Call call) {
+            ExprCode callee = compile(call.callee);
+            ExprCode[] arguments = new ExprCode[call.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = compile(call.arguments.get(i));
+            }
+            return interpreter -> {
+                Inliner.Inlined inlined = interpreter.inlined(call);
+                if (inlined != null) {
+                    ExprCode code = inlined.code;
+                    if (code == null) code = inlined.code = compile(inlined.body);
+                    return code.eval(interpreter);
+                }
+
+                Interpreter.DirectCall direct = interpreter.directCall(call);
+                Object function = direct != null ? direct.function() : callee.eval(interpreter);
+                if (function instanceof LoxFunction lox && lox.takesStack(interpreter)) {
+                    for (ExprCode argument : arguments) {
+                        interpreter.pushArgument(argument.eval(interpreter));
+                    }
+                    if (direct == null) Interpreter.link(call, lox);
+                    return lox.invokeOnStack(interpreter, arguments.length);
+                }
+                return call(interpreter, call, direct, function, arguments);
+            };
+        }
+
+        // Get, Set, Super and This belong to classes, which the interpreter
+        // doesn't implement yet. It evaluates them to nil.
+        return interpreter -> null;
+    }
+
+    // The calls that take their arguments as a list, kept out of the call
+    // closure so that it stays small enough for the JVM to inline.
+    private static Object call(Interpreter interpreter, Expr.Call call,
+                               Interpreter.DirectCall direct, Object function,
+                               ExprCode[] arguments) {
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (ExprCode argument : arguments) {
+            values.add(argument.eval(interpreter));
+        }
+        if (interpreter.profiler != null) {
+            interpreter.profiler.allocated(interpreter, call.paren, values);
+        }
+        if (direct != null) return direct.function().call(interpreter, values);
+        return interpreter.call(call, function, values);
+    }
+
+    // Hands the values the code builds to the allocation profiler. The check
+    // is only compiled in when profiling is on.
+    private static ExprCode profiled(Token site, ExprCode code) {
+        if (!AllocationProfiler.ENABLED) return code;
+        return interpreter -> {
+            Object value = code.eval(interpreter);
+            if (interpreter.profiler != null) interpreter.profiler.allocated(interpreter, site, value);
+            return value;
+        };
+    }
+
+    private static StmtCode define(int slot, Token name, ExprCode value) {
+        if (slot >= 0) {
+            return interpreter -> interpreter.stack[interpreter.base + slot] = value.eval(interpreter);
+        }
+        String lexeme = name.lexeme;
+        return interpreter -> interpreter.globals.define(lexeme, value.eval(interpreter));
+    }
+
+    // Literals are a class rather than a lambda so that numeric() can spot them.
+    private record Constant(Object value) implements ExprCode {
+        @Override
+        public Object eval(Interpreter interpreter) {
+            return value;
+        }
+    }
+
+    private interface NumberOperator {
+        Object apply(double left, double right);
+    }
+
+    private ExprCode binary(Expr.Binary binary) {
+        ExprCode left = compile(binary.left);
+        ExprCode right = compile(binary.right);
+        Token operator = binary.operator;
+
+        // Types proved the operands are numbers.
+        if (binary.numeric) {
+            return switch (operator.type) {
+                case GREATER -> interpreter ->
+                        (double) left.eval(interpreter) > (double) right.eval(interpreter);
+                case GREATER_EQUAL -> interpreter ->
+                        (double) left.eval(interpreter) >= (double) right.eval(interpreter);
+                case LESS -> interpreter ->
+                        (double) left.eval(interpreter) < (double) right.eval(interpreter);
+                case LESS_EQUAL -> interpreter ->
+                        (double) left.eval(interpreter) <= (double) right.eval(interpreter);
+                case MINUS -> interpreter ->
+                        (double) left.eval(interpreter) - (double) right.eval(interpreter);
+                case PLUS -> interpreter ->
+                        (double) left.eval(interpreter) + (double) right.eval(interpreter);
+                case SLASH -> interpreter ->
+                        (double) left.eval(interpreter) / (double) right.eval(interpreter);
+                default -> interpreter ->
+                        (double) left.eval(interpreter) * (double) right.eval(interpreter);
+            };
+        }
+
+        return switch (operator.type) {
+            case GREATER -> numeric(left, right, operator, (a, b) -> a > b);
+            case GREATER_EQUAL -> numeric(left, right, operator, (a, b) -> a >= b);
+            case LESS -> numeric(left, right, operator, (a, b) -> a < b);
+            case LESS_EQUAL -> numeric(left, right, operator, (a, b) -> a <= b);
+            case MINUS -> numeric(left, right, operator, (a, b) -> a - b);
+            case SLASH -> numeric(left, right, operator, (a, b) -> a / b);
+            case STAR -> numeric(left, right, operator, (a, b) -> a * b);
+            case BANG_EQUAL -> interpreter ->
+                    !Interpreter.isEqual(left.eval(interpreter), right.eval(interpreter));
+            case EQUAL_EQUAL -> interpreter ->
+                    Interpreter.isEqual(left.eval(interpreter), right.eval(interpreter));
+            case PLUS -> interpreter -> {
+                Object a = left.eval(interpreter);
+                Object b = right.eval(interpreter);
+                if (a instanceof Double x && b instanceof Double y) return x + y;
+                if (a instanceof String || b instanceof String) {
+                    return Interpreter.stringify(a) + Interpreter.stringify(b);
+                }
+                return null;
+            };
+            default -> interpreter -> {
+                left.eval(interpreter);
+                right.eval(interpreter);
+                return null;
+            };
+        };
+    }
+
+    // A very common shape is a number literal on the right, as in n - 1 or
+    // i < 10. Then the literal is unboxed and needs no check at run time.
+    private static ExprCode numeric(ExprCode left, ExprCode right, Token operator,
+                                    NumberOperator apply) {
+        if (right instanceof Constant constant && constant.value instanceof Double number) {
+            double b = number;
+            return interpreter -> {
+                Object a = left.eval(interpreter);
+                Interpreter.checkNumberOperands(operator, a, number);
+                return apply.apply((double) a, b);
+            };
+        }
+        return interpreter -> {
+            Object a = left.eval(interpreter);
+            Object b = right.eval(interpreter);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return apply.apply((double) a, (double) b);
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.NativeFunction.index;
+import static com.craftinginterpreters.lox.NativeFunction.longIndex;
+import static com.craftinginterpreters.lox.NativeFunction.number;
+
+// Lists and maps. get(), set() and length() also work on buffers, so they
+// live here rather than in BufferModule.
+public class CollectionsModule implements NativeModule {
+    private static final String ANY = "Operand must be a list, map or buffer.";
+
+    @Override
+    public Set<String> globals() {
+        return Set.of("list", "append", "get", "set", "length",
+                "map", "has", "remove", "keys");
+    }
+
+    @Override
+    public Object create(String name) {
+        return switch (name) {
+            case "list" -> new NativeFunction(0, (interpreter, arguments) ->
+                    new LoxList());
+            case "append" -> new NativeFunction(2, (interpreter, arguments) -> {
+                list(arguments.get(0), "Operand must be a list.").append(arguments.get(1));
+                return null;
+            });
+            case "get" -> new NativeFunction(2, (interpreter, arguments) -> {
+                if (arguments.get(0) instanceof LoxMap map) return map.get(arguments.get(1));
+                if (arguments.get(0) instanceof LoxBuffer buffer) {
+                    return buffer.get(longIndex(arguments.get(1)));
+                }
+                return list(arguments.get(0), ANY).get(index(arguments.get(1)));
+            });
+            case "set" -> new NativeFunction(3, (interpreter, arguments) -> {
+                if (arguments.get(0) instanceof LoxMap map) {
+                    map.set(arguments.get(1), arguments.get(2));
+                } else if (arguments.get(0) instanceof LoxBuffer buffer) {
+                    buffer.set(longIndex(arguments.get(1)), number(arguments.get(2)));
+                } else {
+                    list(arguments.get(0), ANY).set(index(arguments.get(1)), arguments.get(2));
+                }
+                return null;
+            });
+            case "length" -> new NativeFunction(1, (interpreter, arguments) -> {
+                if (arguments.get(0) instanceof LoxMap map) return (double) map.length();
+                if (arguments.get(0) instanceof LoxBuffer buffer) return (double) buffer.length();
+                return (double) list(arguments.get(0), ANY).length();
+            });
+            case "map" -> new NativeFunction(0, (interpreter, arguments) ->
+                    new LoxMap());
+            case "has" -> new NativeFunction(2, (interpreter, arguments) ->
+                    map(arguments.get(0)).has(arguments.get(1)));
+            case "remove" -> new NativeFunction(2, (interpreter, arguments) ->
+                    map(arguments.get(0)).remove(arguments.get(1)));
+            case "keys" -> new NativeFunction(1, (interpreter, arguments) ->
+                    map(arguments.get(0)).keys());
+            default -> null;
+        };
+    }
+
+    // Takes the message to fail with from the caller, which knows what else
+    // it would have accepted.
+    private static LoxList list(Object object, String message) {
+        if (object instanceof LoxList list) return list;
+        throw new NativeError(message);
+    }
+
+    private static LoxMap map(Object object) {
+        if (object instanceof LoxMap map) return map;
+        throw new NativeError("Operand must be a map.");
+    }
+}
@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Set;
+
+// Tasks and channels. See LoxTask and LoxChannel.
+public class ConcurrencyModule implements NativeModule {
+    @Override
+    public Set<String> globals() {
+        return Set.of("spawn", "join", "channel", "send", "receive");
+    }
+
+    @Override
+    public Object create(String name) {
+        return switch (name) {
+            case "spawn" -> new NativeFunction(1, (interpreter, arguments) -> {
+                if (!(arguments.get(0) instanceof LoxCallable function) ||
+                        function.arity() != 0) {
+                    throw new NativeError("Can only spawn functions that take no arguments.");
+                }
+                return new LoxTask(interpreter, function);
+            });
+            case "join" -> new NativeFunction(1, (interpreter, arguments) -> {
+                if (!(arguments.get(0) instanceof LoxTask task)) {
+                    throw new NativeError("Can only join tasks.");
+                }
+                return task.join();
+            });
+            case "channel" -> new NativeFunction(1, (interpreter, arguments) -> {
+                if (!(arguments.get(0) instanceof Double capacity) ||
+                        capacity < 1 || capacity != Math.floor(capacity)) {
+                    throw new NativeError("Channel capacity must be a positive integer.");
+                }
+                return new LoxChannel((int) (double) capacity);
+            });
+            case "send" -> new NativeFunction(2, (interpreter, arguments) -> {
+                if (!(arguments.get(0) instanceof LoxChannel channel)) {
+                    throw new NativeError("Can only send to channels.");
+                }
+                channel.send(arguments.get(1));
+                return null;
+            });
+            case "receive" -> new NativeFunction(1, (interpreter, arguments) -> {
+                if (!(arguments.get(0) instanceof LoxChannel channel)) {
+                    throw new NativeError("Can only receive from channels.");
+                }
+                return channel.receive();
+            });
+            default -> null;
+        };
+    }
+}
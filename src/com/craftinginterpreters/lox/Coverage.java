@@ -0,0 +1,206 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Line, branch and function coverage of the scripts an interpreter runs.
+// Enable it with -Dlox.coverage=FILE, and an LCOV report of each script is
+// written to FILE when it ends.
+//
+// While parsing, the parser gives each node it wants to know about a number,
+// its id. Every statement gets one. Each If and While also gets the next
+// two, for its condition coming out true and false, and each function
+// declaration the next one, for its body being entered. Each Logical gets
+// two: one for the left operand deciding the result and one for the right
+// operand being evaluated. Running a node then sets the bit of its id, so
+// the hot path is a load, a test and, the first time only, an atomic or.
+// There is no count, only whether the node ever ran, which is all that
+// coverage needs.
+//
+// An interpreter's programs all number their nodes from the same Coverage,
+// so a function that runs later than the program that declared it still
+// sets its own bits.
+class Coverage {
+    static final String FILE = System.getProperty("lox.coverage");
+    // Lets the closure compiler and FlatAst leave coverage out when it's off.
+    static final boolean ENABLED = FILE != null;
+
+    private static final byte STATEMENT = 0;
+    private static final byte BRANCH = 1;
+    private static final byte FUNCTION = 2;
+
+    private static final VarHandle BITS =
+            MethodHandles.arrayElementVarHandle(long[].class);
+
+    // The first report of a run replaces the file and later ones add to it.
+    private static boolean started = false;
+
+    private volatile long[] bits = new long[1];
+
+    // What each id stands for: its kind, its line and, for a function, its
+    // name.
+    private byte[] kinds = new byte[64];
+    private int[] lines = new int[64];
+    private final Map<Integer, String> functions = new TreeMap<>();
+    private int count = 0;
+
+    // Returns a Coverage when the lox.coverage system property is set, or
+    // null.
+    static Coverage fromProperties() {
+        return ENABLED ? new Coverage() : null;
+    }
+
+    // Numbers the statement, and the outcomes of an If or While or the body
+    // of a function.
+    synchronized void number(Stmt stmt) {
+        int line = stmt.line;
+        stmt.id = add(STATEMENT, line);
+        switch (stmt) {
+            case Stmt.If ifStmt -> {
+                add(BRANCH, line);
+                add(BRANCH, line);
+            }
+            case Stmt.While whileStmt -> {
+                add(BRANCH, line);
+                add(BRANCH, line);
+            }
+            case Stmt.Function function -> {
+                add(FUNCTION, function.name.line);
+                functions.put(stmt.id + 1, function.name.lexeme);
+            }
+            default -> { }
+        }
+    }
+
+    synchronized void number(Expr.Logical logical) {
+        logical.id = add(BRANCH, logical.operator.line);
+        add(BRANCH, logical.operator.line);
+    }
+
+    private int add(byte kind, int line) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        kinds[count] = kind;
+        lines[count] = line;
+        if ((count >>> 6) >= bits.length) {
+            bits = Arrays.copyOf(bits, bits.length * 2);
+        }
+        return count++;
+    }
+
+    void hit(int id) {
+        // Nodes made after parsing have no id.
+        if (id < 0) return;
+        long[] bits = this.bits;
+        long mask = 1L << id;
+        if ((bits[id >>> 6] & mask) == 0) {
+            BITS.getAndBitwiseOr(bits, id >>> 6, mask);
+        }
+    }
+
+    // Records the value the condition of the If or While with the id came
+    // out as.
+    void condition(int id, boolean value) {
+        if (id >= 0) hit(value ? id + 1 : id + 2);
+    }
+
+    // Records whether the left operand of the Logical with the id decided
+    // its result.
+    void logical(int id, boolean decided) {
+        if (id >= 0) hit(decided ? id : id + 1);
+    }
+
+    // Records that the body of the function declared by the statement with
+    // the id was entered.
+    void entered(int id) {
+        if (id >= 0) hit(id + 1);
+    }
+
+    private boolean isHit(int id) {
+        return (bits[id >>> 6] & (1L << id)) != 0;
+    }
+
+    // Writes the LCOV record of the script at the path to the file named by
+    // lox.coverage.
+    void report(Path script) throws IOException {
+        String record = record(script.toAbsolutePath().normalize().toString());
+        synchronized (Coverage.class) {
+            Path file = Paths.get(FILE);
+            if (started) {
+                Files.writeString(file, record, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } else {
+                Files.writeString(file, record, StandardCharsets.UTF_8);
+                started = true;
+            }
+        }
+    }
+
+    private synchronized String record(String source) {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println("TN:");
+        out.println("SF:" + source);
+
+        int hitFunctions = 0;
+        for (Map.Entry<Integer, String> function : functions.entrySet()) {
+            out.println("FN:" + lines[function.getKey()] + "," + function.getValue());
+        }
+        for (Map.Entry<Integer, String> function : functions.entrySet()) {
+            boolean hit = isHit(function.getKey());
+            if (hit) hitFunctions++;
+            out.println("FNDA:" + (hit ? 1 : 0) + "," + function.getValue());
+        }
+        out.println("FNF:" + functions.size());
+        out.println("FNH:" + hitFunctions);
+
+        // Branches come in pairs. The pair's first id serves as its block
+        // number. An outcome of a decision that never ran isn't 0 but "-".
+        int branches = 0;
+        int hitBranches = 0;
+        for (int id = 0; id < count; id++) {
+            if (kinds[id] != BRANCH) continue;
+            boolean ran = isHit(id) || isHit(id + 1);
+            for (int branch = 0; branch < 2; branch++) {
+                boolean hit = isHit(id + branch);
+                out.println("BRDA:" + lines[id] + "," + id + "," + branch + "," +
+                        (ran ? (hit ? "1" : "0") : "-"));
+                branches++;
+                if (hit) hitBranches++;
+            }
+            id++;
+        }
+        out.println("BRF:" + branches);
+        out.println("BRH:" + hitBranches);
+
+        // A line ran if any statement on it did.
+        Map<Integer, Boolean> executed = new TreeMap<>();
+        for (int id = 0; id < count; id++) {
+            if (kinds[id] != STATEMENT) continue;
+            executed.merge(lines[id], isHit(id), Boolean::logicalOr);
+        }
+        int hitLines = 0;
+        for (Map.Entry<Integer, Boolean> line : executed.entrySet()) {
+            if (line.getValue()) hitLines++;
+            out.println("DA:" + line.getKey() + "," + (line.getValue() ? 1 : 0));
+        }
+        out.println("LF:" + executed.size());
+        out.println("LH:" + hitLines);
+        out.println("end_of_record");
+        out.flush();
+        return text.toString();
+    }
+}
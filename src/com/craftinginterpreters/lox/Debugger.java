@@ -0,0 +1,358 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// A debugger for scripts run with jox, driven over a local socket. Start the
+// script with -Dlox.debug=PORT (0 picks a free port), connect, set
+// breakpoints and send "run".
+//
+// The interpreter has no hook for the debugger to check on every statement.
+// Instead a breakpoint swaps a Stmt.Breakpoint wrapping the statement into
+// the list of statements it sits in, and clearing it swaps the statement
+// back. Code away from the breakpoints runs exactly as it would without a
+// debugger. Stepping wraps every statement for as long as it lasts. Only
+// statements in a block, a function body or at the top level can be
+// wrapped, so a breakpoint on the body of an if or while that isn't a block
+// stops at the if or while instead, when it is on the same line.
+//
+// This works on the syntax tree, so it needs -Dlox.mode=tree or switch.
+// Functions stay interpreted while the debugger is attached.
+//
+// The protocol is a line of text per command and per reply:
+//
+//   break LINE    stop before the statement on the line
+//   clear LINE    remove the breakpoint
+//   run           start the script
+//   continue      resume after stopping
+//   step          resume and stop again before the next statement
+//   locals        list the locals in scope, one "name = value" per line
+//   print NAME    show a local or global
+//   where         show the line stopped at
+//
+// Each reply to a command ends with a line of its own reading "ok" or
+// starting with "error". When the script stops the debugger sends "stopped
+// LINE", and when it ends "exited".
+class Debugger {
+    // A statement that can be swapped for a breakpoint, and the locals that
+    // are in scope there.
+    static final class Location {
+        final List<Stmt> list;
+        final int index;
+        final Stmt statement;
+        final List<Local> locals;
+        // Whether a statement around this one starts on the same line, so
+        // that this one isn't where a breakpoint on the line goes.
+        final boolean nested;
+        Stmt.Breakpoint wrapper = null;
+
+        Location(List<Stmt> list, int index, List<Local> locals, boolean nested) {
+            this.list = list;
+            this.index = index;
+            this.statement = list.get(index);
+            this.locals = locals;
+            this.nested = nested;
+        }
+
+        int line() {
+            return statement.line;
+        }
+    }
+
+    // A local variable, read from the slot its declaration was given or, for
+    // a parameter, the slot at its position.
+    record Local(String name, Stmt declaration, int parameter) {
+        int slot() {
+            return switch (declaration) {
+                case Stmt.Var var -> var.slot;
+                case Stmt.Function function -> parameter >= 0 ? parameter : function.slot;
+                default -> -1;
+            };
+        }
+    }
+
+    static final Integer PORT = Integer.getInteger("lox.debug");
+
+    private final ServerSocket server;
+    private PrintWriter client = null;
+    private final CountDownLatch started = new CountDownLatch(1);
+    // Commands that only make sense while stopped, for the interpreter
+    // thread to run.
+    private final BlockingQueue<String> stoppedCommands = new LinkedBlockingQueue<>();
+
+    // Guarded by this.
+    private final List<Location> locations = new ArrayList<>();
+    private final Set<Integer> breakpoints = new HashSet<>();
+    private boolean stepping = false;
+
+    // Interpreters, tasks included, stop one at a time.
+    private final Object stopLock = new Object();
+    private volatile Location stoppedAt = null;
+
+    private Debugger(ServerSocket server) {
+        this.server = server;
+    }
+
+    // Returns a debugger listening on the port in the lox.debug system
+    // property, or null if it isn't set.
+    static Debugger fromProperties() throws IOException {
+        if (PORT == null) return null;
+        Debugger debugger = new Debugger(
+                new ServerSocket(PORT, 1, InetAddress.getLoopbackAddress()));
+        System.err.println("Debugger listening on port " + debugger.server.getLocalPort() + ".");
+        return debugger;
+    }
+
+    // Waits for a client to connect and send "run".
+    void awaitStart() throws IOException {
+        Socket socket = server.accept();
+        client = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Thread reader = new Thread(() -> read(in), "lox-debugger");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            started.await();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void exited() throws IOException {
+        send("exited");
+        server.close();
+    }
+
+    // Finds where breakpoints can go in a program about to run, and puts in
+    // the breakpoints already set on its lines.
+    synchronized void load(List<Stmt> statements) {
+        int first = locations.size();
+        walk(statements, new ArrayList<>(), 0);
+        for (Location location : locations.subList(first, locations.size())) {
+            if (stepping || (!location.nested && breakpoints.contains(location.line()))) {
+                install(location);
+            }
+        }
+    }
+
+    private void walk(List<Stmt> statements, List<Local> scope, int enclosingLine) {
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt stmt = statements.get(i);
+            // Statements made up by the parser, such as the block around a
+            // for loop's body and increment, have no line.
+            if (stmt.line > 0) {
+                locations.add(new Location(statements, i, List.copyOf(scope),
+                        stmt.line == enclosingLine));
+            }
+            walkInside(stmt, scope, stmt.line > 0 ? stmt.line : enclosingLine);
+            switch (stmt) {
+                case Stmt.Var var -> scope.add(new Local(var.name.lexeme, var, -1));
+                case Stmt.Function function ->
+                        scope.add(new Local(function.name.lexeme, function, -1));
+                default -> { }
+            }
+        }
+    }
+
+    private void walkInside(Stmt stmt, List<Local> scope, int line) {
+        switch (stmt) {
+            case Stmt.Block block -> walk(block.statements, new ArrayList<>(scope), line);
+            case Stmt.Function function -> {
+                // Functions don't see the locals around them.
+                List<Local> parameters = new ArrayList<>();
+                for (int i = 0; i < function.params.size(); i++) {
+                    parameters.add(new Local(function.params.get(i).lexeme, function, i));
+                }
+                walk(function.body, parameters, line);
+            }
+            case Stmt.If ifStmt -> {
+                walkInside(ifStmt.thenBranch, scope, line);
+                if (ifStmt.elseBranch != null) walkInside(ifStmt.elseBranch, scope, line);
+            }
+            case Stmt.While whileStmt -> walkInside(whileStmt.body, scope, line);
+            case Stmt.Breakpoint breakpoint -> walkInside(breakpoint.statement, scope, line);
+            default -> { }
+        }
+    }
+
+    private void install(Location location) {
+        if (location.wrapper != null) return;
+        Stmt.Breakpoint wrapper = new Stmt.Breakpoint(location.statement);
+        wrapper.line = location.line();
+        wrapper.id = location.statement.id;
+        wrapper.location = location;
+        location.wrapper = wrapper;
+        location.list.set(location.index, wrapper);
+    }
+
+    private void uninstall(Location location) {
+        if (location.wrapper == null) return;
+        location.list.set(location.index, location.statement);
+        location.wrapper = null;
+    }
+
+    // Puts in or takes out wrappers to match the breakpoints and stepping.
+    private void update() {
+        for (Location location : locations) {
+            if (stepping || (!location.nested && breakpoints.contains(location.line()))) {
+                install(location);
+            } else {
+                uninstall(location);
+            }
+        }
+    }
+
+    // Called by the interpreter before running the statement the wrapper
+    // stands in for.
+    void reached(Interpreter interpreter, Stmt.Breakpoint wrapper) {
+        synchronized (stopLock) {
+            // The wrapper may be on its way out.
+            synchronized (this) {
+                if (wrapper.location.wrapper != wrapper) return;
+                if (!stepping && !breakpoints.contains(wrapper.line)) return;
+            }
+            stop(interpreter, wrapper.location);
+        }
+    }
+
+    private void stop(Interpreter interpreter, Location location) {
+        stoppedAt = location;
+        send("stopped " + location.line());
+        try {
+            while (true) {
+                String[] command = stoppedCommands.take().trim().split("\\s+");
+                switch (command[0]) {
+                    case "continue", "step" -> {
+                        synchronized (this) {
+                            stepping = command[0].equals("step");
+                            update();
+                        }
+                        send("ok");
+                        return;
+                    }
+                    case "locals" -> {
+                        for (Local local : location.locals) {
+                            int slot = local.slot();
+                            if (slot < 0) continue;
+                            send(local.name() + " = " + Interpreter.stringify(
+                                    interpreter.stack[interpreter.base + slot]));
+                        }
+                        send("ok");
+                    }
+                    case "print" -> {
+                        if (command.length < 2) {
+                            send("error Expect a name.");
+                        } else {
+                            print(interpreter, location, command[1]);
+                        }
+                    }
+                    case "where" -> {
+                        send("line " + location.line());
+                        send("ok");
+                    }
+                    default -> send("error Unknown command '" + command[0] + "'.");
+                }
+            }
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stoppedAt = null;
+        }
+    }
+
+    private void print(Interpreter interpreter, Location location, String name) {
+        // The innermost declaration of the name wins.
+        for (int i = location.locals.size() - 1; i >= 0; i--) {
+            Local local = location.locals.get(i);
+            if (local.name().equals(name) && local.slot() >= 0) {
+                send(name + " = " + Interpreter.stringify(
+                        interpreter.stack[interpreter.base + local.slot()]));
+                send("ok");
+                return;
+            }
+        }
+        try {
+            Token token = new Token(TokenType.IDENTIFIER, name, null, location.line());
+            Object value = interpreter.globals.get(token);
+            send(name + " = " + Interpreter.stringify(value));
+            send("ok");
+        } catch (RuntimeError error) {
+            send("error " + error.getMessage());
+        }
+    }
+
+    // Runs on its own thread, reading commands from the client.
+    private void read(BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] command = line.trim().split("\\s+");
+                switch (command[0]) {
+                    case "" -> { }
+                    case "break", "clear" -> breakpoint(command);
+                    case "run" -> {
+                        send("ok");
+                        started.countDown();
+                    }
+                    default -> {
+                        if (stoppedAt != null) {
+                            stoppedCommands.add(line);
+                        } else {
+                            send("error Not stopped.");
+                        }
+                    }
+                }
+            }
+        } catch (IOException error) {
+            // The client went away. Let the script run on by itself.
+        }
+        synchronized (this) {
+            breakpoints.clear();
+            stepping = false;
+            update();
+        }
+        started.countDown();
+        stoppedCommands.add("continue");
+    }
+
+    private void breakpoint(String[] command) {
+        int line;
+        try {
+            line = Integer.parseInt(command.length < 2 ? "" : command[1]);
+        } catch (NumberFormatException error) {
+            send("error Expect a line number.");
+            return;
+        }
+        synchronized (this) {
+            if (command[0].equals("break")) {
+                breakpoints.add(line);
+            } else {
+                breakpoints.remove(line);
+            }
+            update();
+        }
+        send("ok");
+    }
+
+    private void send(String line) {
+        PrintWriter client = this.client;
+        if (client == null) return;
+        synchronized (client) {
+            client.println(line);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+// A syntax error. Errors found by the parser keep their token. The line is
+// the token's when the error was found, which IncrementalDocument moves on
+// if an edit moves the declaration it was found in.
+record Diagnostic(Token token, int line, String message) {
+    @Override
+    public String toString() {
+        String where = "";
+        if (token != null) {
+            where = token.type == TokenType.EOF ? " at end" : " at '" + token.lexeme + "'";
+        }
+        return "[line " + line() + "] Error" + where + ": " + message;
+    }
+}
@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+// Times the visitor, switch and closure execution modes on a few typical
+// workloads. Run it with:
+//
+//   java com.craftinginterpreters.lox.DispatchBenchmark [iterations] [modes...]
+//
+// Modes share HotSpot's profile of the interpreter when run in one JVM, which
+// skews whichever runs later. For a fair comparison run each mode on its own.
+//
+// Each workload is run a few times first so that HotSpot has compiled the
+// interpreter, then the median of the timed runs is reported. The JIT tier is
+// turned off so that it measures dispatch rather than compiled code.
+class DispatchBenchmark {
+    private static final String[][] WORKLOADS = {
+        {"fib", """
+            fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+            fib(22);
+            """},
+        {"loop", """
+            var sum = 0;
+            for (var i = 0; i < 300000; i = i + 1) { sum = sum + i * 2 - 1; }
+            """},
+        {"branches", """
+            var count = 0;
+            for (var i = 0; i < 200000; i = i + 1) {
+              if (i < 1000 or i > 2000 and !(i == 5000)) count = count + 1;
+              else count = count - 1;
+            }
+            """},
+        {"strings", """
+            var s = "";
+            for (var i = 0; i < 2000; i = i + 1) { s = "x" + i; }
+            """},
+    };
+
+    private static final String[] ALL_MODES = {"tree", "switch", "closure"};
+
+    public static void main(String[] args) {
+        System.setProperty("lox.jit", "false");
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 15;
+        String[] modes = args.length > 1
+                ? Arrays.copyOfRange(args, 1, args.length) : ALL_MODES;
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        System.out.printf("%-10s", "workload");
+        for (String mode : modes) System.out.printf("%12s", mode + " ms");
+        System.out.println();
+
+        for (String[] workload : WORKLOADS) {
+            List<Stmt> statements =
+                    new Parser(new Scanner(workload[1]).scanTokens()).parse();
+
+            System.out.printf("%-10s", workload[0]);
+            for (String mode : modes) {
+                System.out.printf("%12.2f", median(statements, mode, iterations, sink));
+            }
+            System.out.println();
+        }
+    }
+
+    private static double median(List<Stmt> statements, String mode,
+                                 int iterations, PrintStream sink) {
+        for (int i = 0; i < iterations; i++) run(statements, mode, sink);
+
+        double[] times = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            run(statements, mode, sink);
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        return times[iterations / 2];
+    }
+
+    private static void run(List<Stmt> statements, String mode, PrintStream sink) {
+        switch (mode) {
+            case "tree" -> new Interpreter(sink).interpret(statements);
+            case "switch" -> new SwitchInterpreter(sink).interpret(statements);
+            case "closure" -> new Interpreter(sink).interpretCompiled(statements);
+        }
+    }
+}
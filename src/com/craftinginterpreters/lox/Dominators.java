@@ -0,0 +1,92 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The dominator tree of an IR function. A block dominates another if every
+// path from the entry to the other goes through it, so a value defined in a
+// block can be used in any block it dominates. The immediate dominator of a
+// block is the closest of the others that dominate it.
+//
+// Computed with the iterative algorithm of Cooper, Harvey and Kennedy, "A
+// Simple, Fast Dominance Algorithm", which walks the blocks in reverse
+// postorder until the immediate dominators stop changing. The CFGs here are
+// small and reducible, so that takes two or three passes.
+final class Dominators {
+    private final List<Ir.Block> order;
+    // A block's position in reverse postorder.
+    private final Map<Ir.Block, Integer> index = new HashMap<>();
+    private final int[] idom;
+    private final List<List<Ir.Block>> children = new ArrayList<>();
+
+    private Dominators(Ir.Function function) {
+        order = function.reversePostorder();
+        for (int i = 0; i < order.size(); i++) {
+            index.put(order.get(i), i);
+            children.add(new ArrayList<>());
+        }
+
+        idom = new int[order.size()];
+        Arrays.fill(idom, -1);
+        idom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < order.size(); i++) {
+                int dominator = -1;
+                for (Ir.Block predecessor : order.get(i).predecessors) {
+                    Integer p = index.get(predecessor);
+                    // Unreachable, or not yet visited along a back edge.
+                    if (p == null || idom[p] < 0) continue;
+                    dominator = dominator < 0 ? p : intersect(p, dominator);
+                }
+                if (idom[i] != dominator) {
+                    idom[i] = dominator;
+                    changed = true;
+                }
+            }
+        }
+
+        for (int i = 1; i < order.size(); i++) {
+            children.get(idom[i]).add(order.get(i));
+        }
+    }
+
+    static Dominators of(Ir.Function function) {
+        return new Dominators(function);
+    }
+
+    // Walks up from two blocks to the closest block that dominates both.
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (a > b) a = idom[a];
+            while (b > a) b = idom[b];
+        }
+        return a;
+    }
+
+    // The immediate dominator, or null for the entry.
+    Ir.Block idom(Ir.Block block) {
+        int i = index.get(block);
+        return i == 0 ? null : order.get(idom[i]);
+    }
+
+    // Whether a dominates b. Every block dominates itself.
+    boolean dominates(Ir.Block a, Ir.Block b) {
+        Integer target = index.get(a);
+        Integer i = index.get(b);
+        if (target == null || i == null) return false;
+        // A dominator comes before the blocks it dominates in reverse
+        // postorder, so the walk up can stop once it passes a.
+        while (i > target) i = idom[i];
+        return i.equals(target);
+    }
+
+    // The blocks that a block immediately dominates.
+    List<Ir.Block> children(Ir.Block block) {
+        return children.get(index.get(block));
+    }
+}
@@ -1,50 +1,193 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// The global variables. Locals live in the interpreter's stack instead; see
+// Locals.
+//
+// Each global name gets a fixed index the first time the code resolved
+// against these globals uses it, and its value sits at that index in an
+// array, so Expr.Variable and Expr.Assign nodes cache the index and reach the
+// value with an array load instead of hashing the name. The indices belong
+// to the Environment, so each root interpreter (every script in a batch, say)
+// has a table of only the names its own code uses. Tasks share their
+// parent's globals and so its indices. A slot holds UNDEFINED until the name
+// is defined, so a name that is used before it is defined still gets its
+// native or its "Undefined var" error at run time, exactly as before.
+//
+// Only code that will run gets names added. Lookups of names that may not
+// exist, such as one typed into the debugger, go through find() instead.
+//
+// Most globals are written once, by their definition, and never again. Each
+// such global has a Stable: an assumption that it still holds that first
+// value. Code that reads the global can keep the Stable and use its value
+// directly for as long as the assumption holds. The next write to the
+// global, whether an assignment or another definition, invalidates the
+// assumption for good.
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    static final class Stable {
+        final Environment owner;
+        final Object value;
+        volatile boolean valid;
 
-    // For the global scope environment
-    Environment() {
-        enclosing = null;
+        Stable(Environment owner, Object value, boolean valid) {
+            this.owner = owner;
+            this.value = value;
+            this.valid = valid;
+        }
+    }
+
+    // Marks a global that has been written more than once.
+    private static final Stable UNSTABLE = new Stable(null, null, false);
+
+    private static final class Chunk {
+        final Object[] values = new Object[CHUNK_SIZE];
+        final Stable[] stables = new Stable[CHUNK_SIZE];
+
+        Chunk() {
+            Arrays.fill(values, UNDEFINED);
+        }
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    private final Map<String, Integer> indices = new ConcurrentHashMap<>();
+    private final AtomicInteger indexCount = new AtomicInteger();
+
+    private static final Object UNDEFINED = new Object();
+
+    // Values are kept in fixed-size chunks that never move once made, so
+    // growing the table can't lose a value another task is writing.
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Tasks spawned by a script all share the globals, so values are read
+    // with acquire and written with release semantics, as the concurrent map
+    // they replaced did.
+    private static final VarHandle ELEMENT =
+            MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private volatile Chunk[] chunks = new Chunk[4];
+
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        if (index != null) return index;
+        return indices.computeIfAbsent(name, key -> indexCount.getAndIncrement());
     }
+
+    // Returns the name's index, or -1 if nothing has used it yet.
+    int find(String name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
     void define(String name, Object value) {
-        values.put(name, value);
+        define(indexOf(name), value);
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    void define(int index, Object value) {
+        Chunk chunk = chunk(index);
+        int slot = index & CHUNK_MASK;
+        if (chunk.stables[slot] == UNSTABLE) {
+            ELEMENT.setRelease(chunk.values, slot, value);
+        } else {
+            write(chunk, slot, value);
+        }
+    }
+
+    // Makes the first write to a global stable and invalidates it on the
+    // second. Only those two writes take the lock.
+    private synchronized void write(Chunk chunk, int slot, Object value) {
+        Stable stable = chunk.stables[slot];
+        if (stable == null && chunk.values[slot] == UNDEFINED) {
+            chunk.stables[slot] = new Stable(this, value, true);
+        } else {
+            if (stable != null) stable.valid = false;
+            chunk.stables[slot] = UNSTABLE;
         }
-        // If the variable isn’t found in this environment, we simply try the enclosing one.
-        //That in turn does the same thing recursively, so this will ultimately walk the
-        //entire chain. If we reach an environment with no enclosing one and still don’t
-        //find the variable, then we give up and report an error as before.
-        if (enclosing != null) return enclosing.get(name);
+        ELEMENT.setRelease(chunk.values, slot, value);
+    }
+
+    // Returns the assumption that the global still has the value it was
+    // defined with, or null if it has been written since.
+    Stable stable(int index) {
+        Chunk[] chunks = this.chunks;
+        int number = index >>> CHUNK_SHIFT;
+        if (number >= chunks.length || chunks[number] == null) return null;
+        Stable stable = chunks[number].stables[index & CHUNK_MASK];
+        return stable != null && stable.valid ? stable : null;
+    }
+
+    // Looks the name up without giving it an index.
+    Object get(Token name) {
+        int index = find(name.lexeme);
+        if (index >= 0) return get(index, name);
+
+        Object loaded = NativeModules.load(name.lexeme);
+        if (loaded != null) return loaded;
+        throw new RuntimeError(name,
+                "Undefined var '" + name.lexeme + "'.");
+    }
+
+    Object get(int index, Token name) {
+        Object value = read(index);
+        if (value != UNDEFINED) return value;
+
+        // The name might be a native that no one has needed yet.
+        Object loaded = NativeModules.load(name.lexeme);
+        if (loaded != null) return install(chunk(index), index & CHUNK_MASK, loaded);
 
         throw new RuntimeError(name,
                 "Undefined var '" + name.lexeme + "'.");
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+        assign(indexOf(name.lexeme), name, value);
+    }
+
+    void assign(int index, Token name, Object value) {
+        // Assigning to a native that hasn't been loaded yet just replaces it.
+        if (read(index) == UNDEFINED && NativeModules.load(name.lexeme) == null) {
+            throw new RuntimeError(name,
+                    "Undefined var '" + name.lexeme + "'.");
         }
-        //Again, if the variable isn’t in this environment, it checks the outer one, recursively.
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        define(index, value);
+    }
+
+    // Defines a native unless another task got there first, and returns
+    // whichever value won.
+    private synchronized Object install(Chunk chunk, int slot, Object value) {
+        Object existing = chunk.values[slot];
+        if (existing != UNDEFINED) return existing;
+        write(chunk, slot, value);
+        return value;
+    }
+
+    private Object read(int index) {
+        Chunk[] chunks = this.chunks;
+        int number = index >>> CHUNK_SHIFT;
+        if (number >= chunks.length || chunks[number] == null) return UNDEFINED;
+        return ELEMENT.getAcquire(chunks[number].values, index & CHUNK_MASK);
+    }
+
+    private Chunk chunk(int index) {
+        Chunk[] chunks = this.chunks;
+        int number = index >>> CHUNK_SHIFT;
+        if (number < chunks.length && chunks[number] != null) return chunks[number];
+        return addChunk(number);
+    }
+
+    private synchronized Chunk addChunk(int number) {
+        Chunk[] chunks = this.chunks;
+        if (number >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(number + 1, chunks.length * 2));
         }
-        throw new RuntimeError(name,
-                "Undefined var '" + name.lexeme + "'.");
+        if (chunks[number] == null) chunks[number] = new Chunk();
+        this.chunks = chunks;
+        return chunks[number];
     }
 }
-
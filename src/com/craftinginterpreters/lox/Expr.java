@@ -3,7 +3,7 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Expr {
+abstract sealed class Expr {
   interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
@@ -17,14 +17,32 @@ abstract class Expr {
     R visitThisExpr(This expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
+  }
+
+  static final int ASSIGN = 0;
+  static final int BINARY = 1;
+  static final int CALL = 2;
+  static final int GET = 3;
+  static final int GROUPING = 4;
+  static final int LITERAL = 5;
+  static final int LOGICAL = 6;
+  static final int SET = 7;
+  static final int SUPER = 8;
+  static final int THIS = 9;
+  static final int UNARY = 10;
+  static final int VARIABLE = 11;
+
+  final int kind;
 
-    Object visitBinary(Binary expr);
+  private Expr(int kind) {
+    this.kind = kind;
   }
 
   // Nested Expr classes here...
 //> expr-assign
-  static class Assign extends Expr {
+  static final class Assign extends Expr {
     Assign(Token name, Expr value) {
+      super(ASSIGN);
       this.name = name;
       this.value = value;
     }
@@ -36,11 +54,15 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int slot = -1;
+    int global = -1;
   }
-  //< expr-assign
+//< expr-assign
 //> expr-binary
-  static class Binary extends Expr {
+  static final class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
+      super(BINARY);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -54,11 +76,14 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    boolean numeric;
   }
-  //< expr-binary
+//< expr-binary
 //> expr-call
-  static class Call extends Expr {
+  static final class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
+      super(CALL);
       this.callee = callee;
       this.paren = paren;
       this.arguments = arguments;
@@ -72,11 +97,15 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    Object inlineCache;
+    int calls;
   }
-  //< expr-call
+//< expr-call
 //> expr-get
-  static class Get extends Expr {
+  static final class Get extends Expr {
     Get(Expr object, Token name) {
+      super(GET);
       this.object = object;
       this.name = name;
     }
@@ -89,10 +118,11 @@ abstract class Expr {
     final Expr object;
     final Token name;
   }
-  //< expr-get
+//< expr-get
 //> expr-grouping
-  static class Grouping extends Expr {
+  static final class Grouping extends Expr {
     Grouping(Expr expression) {
+      super(GROUPING);
       this.expression = expression;
     }
 
@@ -103,10 +133,11 @@ abstract class Expr {
 
     final Expr expression;
   }
-  //< expr-grouping
+//< expr-grouping
 //> expr-literal
-  static class Literal extends Expr {
+  static final class Literal extends Expr {
     Literal(Object value) {
+      super(LITERAL);
       this.value = value;
     }
 
@@ -117,10 +148,11 @@ abstract class Expr {
 
     final Object value;
   }
-  //< expr-literal
+//< expr-literal
 //> expr-logical
-  static class Logical extends Expr {
+  static final class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
+      super(LOGICAL);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -134,11 +166,14 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    int id = -1;
   }
-  //< expr-logical
+//< expr-logical
 //> expr-set
-  static class Set extends Expr {
+  static final class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
+      super(SET);
       this.object = object;
       this.name = name;
       this.value = value;
@@ -153,10 +188,11 @@ abstract class Expr {
     final Token name;
     final Expr value;
   }
-  //< expr-set
+//< expr-set
 //> expr-super
-  static class Super extends Expr {
+  static final class Super extends Expr {
     Super(Token keyword, Token method) {
+      super(SUPER);
       this.keyword = keyword;
       this.method = method;
     }
@@ -169,10 +205,11 @@ abstract class Expr {
     final Token keyword;
     final Token method;
   }
-  //< expr-super
+//< expr-super
 //> expr-this
-  static class This extends Expr {
+  static final class This extends Expr {
     This(Token keyword) {
+      super(THIS);
       this.keyword = keyword;
     }
 
@@ -183,10 +220,11 @@ abstract class Expr {
 
     final Token keyword;
   }
-  //< expr-this
+//< expr-this
 //> expr-unary
-  static class Unary extends Expr {
+  static final class Unary extends Expr {
     Unary(Token operator, Expr right) {
+      super(UNARY);
       this.operator = operator;
       this.right = right;
     }
@@ -198,11 +236,14 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+
+    boolean numeric;
   }
-  //< expr-unary
+//< expr-unary
 //> expr-variable
-  static class Variable extends Expr {
+  static final class Variable extends Expr {
     Variable(Token name) {
+      super(VARIABLE);
       this.name = name;
     }
 
@@ -212,6 +253,10 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int slot = -1;
+    int global = -1;
+    Environment.Stable stable;
   }
 //< expr-variable
 
@@ -0,0 +1,286 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The syntax tree of a script packed into a handful of parallel arrays, for
+// FlatInterpreter. A node is an index. Its kind is kind[node], and a[node],
+// b[node] and c[node] hold its operands: child nodes, slots, or indices into
+// lists, constants, tokens or the caches. Only the tokens some node needs for
+// its name or its error messages are kept. A variable is either a local slot
+// or, stored as ~index so that it is negative, the index of a global.
+// Children come before their parents, so walking a subtree moves forward
+// through the arrays, and a node costs 13 bytes instead of an object of its
+// own, its List and the List's array.
+//
+// The operands by kind, with NONE for a missing child:
+//
+//   ASSIGN      a value, b variable, c name token
+//   BINARY      a left, b right, c operator token, or ~token if it is
+//               numeric (see Types)
+//   CALL        a callee, b list (cache index, argument count, arguments),
+//               c paren token
+//   LITERAL     a constant
+//   LOGICAL     a left, b right, c 1 for "or" and 0 for "and"
+//   UNARY       a operand, c operator token, or ~token if it is numeric
+//   VARIABLE    a cache, b variable, c name token
+//   BLOCK       b list of statements, c statement count
+//   EXPRESSION  a expression
+//   FUNCTION    a constant (the declaration without its body, then the body
+//               code), b list of statements, c statement count. A generator
+//               keeps its whole declaration and has no statements
+//   IF          a condition, b then branch, c else branch
+//   PRINT       a expression
+//   RETURN      a value
+//   VAR         a initializer, b variable, c name token
+//   WHILE       a condition, b body, c keyword token
+//
+// Groupings are dropped, since they only matter to the parser. Get, Set,
+// Super, This and Class are kept as bare kinds; the interpreter doesn't
+// implement classes yet.
+final class FlatAst {
+    // Statement kinds are Stmt's tags offset by this, after Expr's.
+    static final int STMT = 16;
+    static final int NONE = -1;
+
+    final byte[] kind;
+    final int[] a;
+    final int[] b;
+    final int[] c;
+    final int[] lists;
+    final Object[] constants;
+    final Token[] tokens;
+    // The coverage id of each statement and Logical, kept only when coverage
+    // is on.
+    final int[] ids;
+
+    // Runtime state: the stable globals that variables fold in and the
+    // direct calls that call sites link, as in the fields of the tree nodes.
+    final Object[] caches;
+
+    // The top-level statements and the size of their frame.
+    final int statements;
+    final int statementCount;
+    final int frameSize;
+
+    private FlatAst(Encoder encoder, int statements, int statementCount, int frameSize) {
+        int size = encoder.size;
+        this.kind = Arrays.copyOf(encoder.kind, size);
+        this.a = Arrays.copyOf(encoder.a, size);
+        this.b = Arrays.copyOf(encoder.b, size);
+        this.c = Arrays.copyOf(encoder.c, size);
+        this.lists = Arrays.copyOf(encoder.lists, encoder.listSize);
+        this.constants = encoder.constants.toArray();
+        this.tokens = encoder.tokens.toArray(new Token[0]);
+        this.ids = Coverage.ENABLED ? Arrays.copyOf(encoder.ids, size) : null;
+        this.caches = new Object[encoder.caches];
+        this.statements = statements;
+        this.statementCount = statementCount;
+        this.frameSize = frameSize;
+
+        // Function bodies run from this encoding, so they can only be made
+        // once it exists.
+        for (int i = 0; i < size; i++) {
+            if (kind[i] == STMT + Stmt.FUNCTION) {
+                int start = b[i];
+                int count = c[i];
+                ClosureCompiler.StmtCode body = interpreter ->
+                        ((FlatInterpreter) interpreter).run(this, start, count);
+                constants[a[i] + 1] = new ClosureCompiler.StmtCode[] {body};
+            }
+        }
+    }
+
+    // Assigns the locals their slots, as Interpreter.interpret() does, and
+    // encodes the script.
+    static FlatAst encode(List<Stmt> statements, Environment globals) {
+        int frameSize = Locals.resolve(statements, globals);
+        Encoder encoder = new Encoder(globals);
+        int list = encoder.statements(statements);
+        return new FlatAst(encoder, list, statements.size(), frameSize);
+    }
+
+    private static class Encoder {
+        byte[] kind = new byte[256];
+        int[] a = new int[256];
+        int[] b = new int[256];
+        int[] c = new int[256];
+        int[] ids = new int[256];
+        int size = 0;
+
+        int[] lists = new int[64];
+        int listSize = 0;
+
+        final List<Object> constants = new ArrayList<>();
+        final List<Token> tokens = new ArrayList<>();
+        final Map<Token, Integer> tokenIndices = new IdentityHashMap<>();
+        int caches = 0;
+        // Where the globals get their indices.
+        final Environment globals;
+
+        Encoder(Environment globals) {
+            this.globals = globals;
+        }
+
+        private int node(int nodeKind, int a, int b, int c) {
+            if (size == kind.length) {
+                int capacity = size * 2;
+                kind = Arrays.copyOf(kind, capacity);
+                this.a = Arrays.copyOf(this.a, capacity);
+                this.b = Arrays.copyOf(this.b, capacity);
+                this.c = Arrays.copyOf(this.c, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+            }
+            kind[size] = (byte) nodeKind;
+            this.a[size] = a;
+            this.b[size] = b;
+            this.c[size] = c;
+            ids[size] = -1;
+            return size++;
+        }
+
+        private int token(Token token) {
+            return tokenIndices.computeIfAbsent(token, key -> {
+                tokens.add(key);
+                return tokens.size() - 1;
+            });
+        }
+
+        private int constant(Object value) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+
+        private int variable(int slot, Token name) {
+            return slot >= 0 ? slot : ~globals.indexOf(name.lexeme);
+        }
+
+        // Appends the entries as one list and returns where it starts.
+        private int list(int[] entries, int count) {
+            while (listSize + count > lists.length) {
+                lists = Arrays.copyOf(lists, lists.length * 2);
+            }
+            System.arraycopy(entries, 0, lists, listSize, count);
+            listSize += count;
+            return listSize - count;
+        }
+
+        int statements(List<Stmt> statements) {
+            int[] nodes = new int[statements.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = stmt(statements.get(i));
+            }
+            return list(nodes, nodes.length);
+        }
+
+        private int stmt(Stmt stmt) {
+            int node = encode(stmt);
+            ids[node] = stmt.id;
+            return node;
+        }
+
+        private int encode(Stmt stmt) {
+            return switch (stmt) {
+                case Stmt.Block block -> {
+                    int list = statements(block.statements);
+                    yield node(STMT + Stmt.BLOCK, NONE, list, block.statements.size());
+                }
+                case Stmt.Class classStmt -> node(STMT + Stmt.CLASS, NONE, NONE, NONE);
+                case Stmt.Expression expression ->
+                        node(STMT + Stmt.EXPRESSION, expr(expression.expression), NONE, NONE);
+                // A generator's body runs as IR, made from the declaration
+                // itself, so only that is kept. See LoxGenerator.
+                case Stmt.Function function when function.generator -> {
+                    int constant = constant(function);
+                    constant(null);
+                    yield node(STMT + Stmt.FUNCTION, constant, statements(List.of()), 0);
+                }
+                case Stmt.Function function -> {
+                    int list = statements(function.body);
+                    Stmt.Function declaration =
+                            new Stmt.Function(function.name, function.params, List.of());
+                    declaration.slot = function.slot;
+                    declaration.frameSize = function.frameSize;
+                    declaration.id = function.id;
+                    int constant = constant(declaration);
+                    constant(null);
+                    yield node(STMT + Stmt.FUNCTION, constant, list, function.body.size());
+                }
+                case Stmt.If ifStmt -> {
+                    int condition = expr(ifStmt.condition);
+                    int thenBranch = stmt(ifStmt.thenBranch);
+                    int elseBranch = ifStmt.elseBranch == null ? NONE : stmt(ifStmt.elseBranch);
+                    yield node(STMT + Stmt.IF, condition, thenBranch, elseBranch);
+                }
+                case Stmt.Print print ->
+                        node(STMT + Stmt.PRINT, expr(print.expression), NONE, NONE);
+                case Stmt.Return returnStmt -> node(STMT + Stmt.RETURN,
+                        returnStmt.value == null ? NONE : expr(returnStmt.value),
+                        NONE, NONE);
+                case Stmt.Var var -> node(STMT + Stmt.VAR,
+                        var.initializer == null ? NONE : expr(var.initializer),
+                        variable(var.slot, var.name), token(var.name));
+                case Stmt.While whileStmt -> {
+                    int condition = expr(whileStmt.condition);
+                    int body = stmt(whileStmt.body);
+                    yield node(STMT + Stmt.WHILE, condition, body, token(whileStmt.keyword));
+                }
+                // The debugger only works on trees, so its wrappers are
+                // simply left out.
+                case Stmt.Breakpoint breakpoint -> encode(breakpoint.statement);
+                // Only generators yield, and their bodies aren't encoded.
+                case Stmt.Yield yieldStmt -> throw new IllegalStateException();
+            };
+        }
+
+        private int expr(Expr expr) {
+            return switch (expr) {
+                case Expr.Assign assign -> node(Expr.ASSIGN, expr(assign.value),
+                        variable(assign.slot, assign.name), token(assign.name));
+                case Expr.Binary binary -> {
+                    int left = expr(binary.left);
+                    int right = expr(binary.right);
+                    int operator = token(binary.operator);
+                    yield node(Expr.BINARY, left, right, binary.numeric ? ~operator : operator);
+                }
+                case Expr.Call call -> {
+                    int callee = expr(call.callee);
+                    int[] entries = new int[call.arguments.size() + 2];
+                    entries[0] = caches++;
+                    entries[1] = call.arguments.size();
+                    for (int i = 2; i < entries.length; i++) {
+                        entries[i] = expr(call.arguments.get(i - 2));
+                    }
+                    int list = list(entries, entries.length);
+                    yield node(Expr.CALL, callee, list, token(call.paren));
+                }
+                case Expr.Get get -> node(Expr.GET, NONE, NONE, NONE);
+                case Expr.Grouping grouping -> expr(grouping.expression);
+                case Expr.Literal literal ->
+                        node(Expr.LITERAL, constant(literal.value), NONE, NONE);
+                case Expr.Logical logical -> {
+                    int left = expr(logical.left);
+                    int right = expr(logical.right);
+                    int node = node(Expr.LOGICAL, left, right,
+                            logical.operator.type == TokenType.OR ? 1 : 0);
+                    ids[node] = logical.id;
+                    yield node;
+                }
+                case Expr.Set set -> node(Expr.SET, NONE, NONE, NONE);
+                case Expr.Super superExpr -> node(Expr.SUPER, NONE, NONE, NONE);
+                case Expr.This thisExpr -> node(Expr.THIS, NONE, NONE, NONE);
+                case Expr.Unary unary -> {
+                    int operator = token(unary.operator);
+                    yield node(Expr.UNARY, expr(unary.right), NONE,
+                            unary.numeric ? ~operator : operator);
+                }
+                case Expr.Variable variable -> node(Expr.VARIABLE,
+                        variable.slot >= 0 ? NONE : caches++,
+                        variable(variable.slot, variable.name), token(variable.name));
+            };
+        }
+    }
+}
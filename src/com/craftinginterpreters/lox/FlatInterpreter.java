@@ -0,0 +1,230 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs a script from its FlatAst encoding. Every node is handled the same
+// way Interpreter handles it, sharing the operators, the call checks and the
+// frame stack, so the two behave identically, errors included. Select it
+// with -Dlox.mode=flat.
+class FlatInterpreter extends Interpreter {
+    // The encoding of the code that is running. A function body runs from
+    // the encoding it was defined in, which may belong to an earlier line of
+    // the REPL.
+    private FlatAst ast;
+
+    FlatInterpreter(PrintStream out) {
+        super(out);
+    }
+
+    private FlatInterpreter(Interpreter parent) {
+        super(parent);
+    }
+
+    @Override
+    Interpreter fork() {
+        return new FlatInterpreter(this);
+    }
+
+    void interpretFlat(FlatAst program) {
+        int frame = push(program.frameSize);
+        FlatAst previous = ast;
+        ast = program;
+        try {
+            executeList(program.statements, program.statementCount);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            ast = previous;
+            pop(frame);
+        }
+    }
+
+    // Runs a function body. The caller has already pushed its frame.
+    void run(FlatAst program, int start, int count) {
+        FlatAst previous = ast;
+        ast = program;
+        try {
+            executeList(start, count);
+        } finally {
+            ast = previous;
+        }
+    }
+
+    private void executeList(int start, int count) {
+        int[] lists = ast.lists;
+        for (int i = start; i < start + count; i++) {
+            execute(lists[i]);
+        }
+    }
+
+    private void execute(int node) {
+        FlatAst ast = this.ast;
+        if (coverage != null) coverage.hit(id(ast, node));
+        switch (ast.kind[node]) {
+            case FlatAst.STMT + Stmt.BLOCK -> {
+                if (budget != null) budget.allocateEnvironment();
+                executeList(ast.b[node], ast.c[node]);
+            }
+            case FlatAst.STMT + Stmt.EXPRESSION -> evaluate(ast.a[node]);
+            case FlatAst.STMT + Stmt.FUNCTION -> {
+                int constant = ast.a[node];
+                Stmt.Function declaration = (Stmt.Function) ast.constants[constant];
+                ClosureCompiler.StmtCode[] body =
+                        (ClosureCompiler.StmtCode[]) ast.constants[constant + 1];
+                define(declaration.slot, declaration.name, new LoxFunction(declaration, body));
+            }
+            case FlatAst.STMT + Stmt.IF -> {
+                if (condition(coverage == null ? -1 : id(ast, node), evaluate(ast.a[node]))) {
+                    execute(ast.b[node]);
+                } else if (ast.c[node] != FlatAst.NONE) {
+                    execute(ast.c[node]);
+                }
+            }
+            case FlatAst.STMT + Stmt.PRINT -> out.println(stringify(evaluate(ast.a[node])));
+            case FlatAst.STMT + Stmt.RETURN -> {
+                int value = ast.a[node];
+                throw new Return(value == FlatAst.NONE ? null : evaluate(value));
+            }
+            case FlatAst.STMT + Stmt.VAR -> {
+                int initializer = ast.a[node];
+                Object value = initializer == FlatAst.NONE ? null : evaluate(initializer);
+                int variable = ast.b[node];
+                if (variable >= 0) {
+                    stack[base + variable] = value;
+                } else {
+                    globals.define(~variable, value);
+                }
+            }
+            case FlatAst.STMT + Stmt.WHILE -> {
+                int condition = ast.a[node];
+                int body = ast.b[node];
+                Token keyword = ast.tokens[ast.c[node]];
+                int id = coverage == null ? -1 : id(ast, node);
+                while (condition(id, evaluate(condition))) {
+                    if (budget != null) budget.tick(keyword);
+                    execute(body);
+                }
+            }
+            // Classes aren't implemented yet.
+            default -> { }
+        }
+    }
+
+    private Object evaluate(int node) {
+        FlatAst ast = this.ast;
+        switch (ast.kind[node]) {
+            case Expr.ASSIGN -> {
+                Object value = evaluate(ast.a[node]);
+                int variable = ast.b[node];
+                if (variable >= 0) {
+                    stack[base + variable] = value;
+                } else {
+                    globals.assign(~variable, ast.tokens[ast.c[node]], value);
+                }
+                return value;
+            }
+            case Expr.BINARY -> {
+                Object left = evaluate(ast.a[node]);
+                Object right = evaluate(ast.b[node]);
+                int c = ast.c[node];
+                Token operator = ast.tokens[c >= 0 ? c : ~c];
+                Object value = c >= 0
+                        ? binary(operator, left, right)
+                        : numeric(operator, (double) left, (double) right);
+                if (profiler != null) profiler.allocated(this, operator, value);
+                return value;
+            }
+            case Expr.CALL -> {
+                return call(ast, node);
+            }
+            case Expr.LITERAL -> {
+                return ast.constants[ast.a[node]];
+            }
+            case Expr.LOGICAL -> {
+                Object left = evaluate(ast.a[node]);
+                int id = coverage == null ? -1 : id(ast, node);
+                if (ast.c[node] == 1) {
+                    if (decided(id, isTruthy(left))) return left;
+                } else {
+                    if (decided(id, !isTruthy(left))) return left;
+                }
+                return evaluate(ast.b[node]);
+            }
+            case Expr.UNARY -> {
+                int c = ast.c[node];
+                Token operator = ast.tokens[c >= 0 ? c : ~c];
+                Object right = evaluate(ast.a[node]);
+                Object value = c >= 0 ? unary(operator, right) : -(double) right;
+                if (profiler != null) profiler.allocated(this, operator, value);
+                return value;
+            }
+            case Expr.VARIABLE -> {
+                int variable = ast.b[node];
+                if (variable >= 0) return stack[base + variable];
+                return global(ast, node);
+            }
+            // Get, Set, Super and This belong to classes.
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    // Encodings made while coverage was off have no ids.
+    private static int id(FlatAst ast, int node) {
+        return ast.ids == null ? -1 : ast.ids[node];
+    }
+
+    // Interpreter.global() with the fold kept in the caches.
+    private Object global(FlatAst ast, int node) {
+        int cache = ast.a[node];
+        if (ast.caches[cache] instanceof Environment.Stable stable &&
+                stable.valid && stable.owner == globals) {
+            return stable.value;
+        }
+
+        int global = ~ast.b[node];
+        Object value = globals.get(global, ast.tokens[ast.c[node]]);
+        ast.caches[cache] = globals.stable(global);
+        return value;
+    }
+
+    // Interpreter.visitCallExpr() and call(), with the direct call kept in
+    // the caches. Java methods take the uncached path.
+    private Object call(FlatAst ast, int node) {
+        int callee = ast.a[node];
+        int list = ast.b[node];
+        int cache = ast.lists[list];
+        int count = ast.lists[list + 1];
+
+        DirectCall direct = null;
+        if (ast.caches[cache] instanceof DirectCall linked &&
+                linked.stable().valid && linked.stable().owner == globals) {
+            direct = linked;
+        }
+        Object function = direct != null ? direct.function() : evaluate(callee);
+
+        List<Object> arguments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            arguments.add(evaluate(ast.lists[list + 2 + i]));
+        }
+        Token paren = ast.tokens[ast.c[node]];
+        if (profiler != null) profiler.allocated(this, paren, arguments);
+        if (direct != null) return direct.function().call(this, arguments);
+
+        LoxCallable target = callable(paren, function, arguments);
+        if (target instanceof LoxFunction lox && ast.kind[callee] == Expr.VARIABLE &&
+                ast.b[callee] < 0 &&
+                ast.caches[ast.a[callee]] instanceof Environment.Stable stable &&
+                stable.value == lox) {
+            ast.caches[cache] = new DirectCall(stable, lox);
+        }
+        try {
+            return target.call(this, arguments);
+        } catch (NativeError error) {
+            throw new RuntimeError(paren, error.getMessage());
+        }
+    }
+}
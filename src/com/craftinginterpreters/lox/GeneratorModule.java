@@ -0,0 +1,27 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Set;
+
+// Taking values from generators. See LoxGenerator.
+public class GeneratorModule implements NativeModule {
+    @Override
+    public Set<String> globals() {
+        return Set.of("next", "done");
+    }
+
+    @Override
+    public Object create(String name) {
+        return switch (name) {
+            case "next" -> new NativeFunction(1, (interpreter, arguments) ->
+                    generator(arguments.get(0)).next(interpreter));
+            case "done" -> new NativeFunction(1, (interpreter, arguments) ->
+                    generator(arguments.get(0)).done(interpreter));
+            default -> null;
+        };
+    }
+
+    private static LoxGenerator generator(Object object) {
+        if (object instanceof LoxGenerator generator) return generator;
+        throw new NativeError("Operand must be a generator.");
+    }
+}
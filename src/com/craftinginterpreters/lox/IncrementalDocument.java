@@ -0,0 +1,371 @@
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+// A script being edited, for editor integrations that want diagnostics after
+// every keystroke. Rather than rescanning and reparsing the whole file, an
+// edit rescans only from just before the changed text until the new tokens
+// line up with the old ones again, and reparses only the top-level
+// declarations that could have seen a changed token. Everything after that
+// is reused, syntax trees and all.
+//
+// Tokens are immutable, and a reused tree still points at the tokens it was
+// parsed from, so those can't be moved. Instead each declaration records how
+// far its tokens have moved since they were scanned. A token that reaches the
+// parser or tokens() again is first replaced with a copy at its current
+// position. Tokens captured elsewhere, by a Diagnostic or a RuntimeError,
+// keep the position they were captured at. The line each statement was
+// stamped with when it was parsed is kept current.
+class IncrementalDocument {
+    // A top-level declaration and the tokens it was parsed from. The ranges
+    // of consecutive declarations are adjacent and, between edits, together
+    // cover every token but the EOF.
+    private static class Declaration {
+        int start;
+        int end;
+        final Stmt stmt;
+        List<Diagnostic> diagnostics;
+        // How far the declaration's tokens have moved since they were
+        // scanned.
+        int offsetShift = 0;
+        int lineShift = 0;
+
+        Declaration(int start, int end, Stmt stmt, List<Diagnostic> diagnostics) {
+            this.start = start;
+            this.end = end;
+            this.stmt = stmt;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    // Scanner errors have no token, so they are kept with the offset where
+    // the scanner went looking for the token that failed.
+    private static class ScanError {
+        int offset;
+        int line;
+        final String message;
+
+        ScanError(int offset, int line, String message) {
+            this.offset = offset;
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    private String source = "";
+    private final List<Token> tokens = new ArrayList<>();
+    private final List<Declaration> declarations = new ArrayList<>();
+    private List<ScanError> scanErrors = new ArrayList<>();
+
+    // The tokens at their current positions. Reading a token that has moved
+    // replaces its declaration's tokens with copies that haven't.
+    private final List<Token> current = new AbstractList<>() {
+        @Override
+        public Token get(int index) {
+            Declaration declaration = owner(index);
+            if (declaration != null &&
+                    (declaration.offsetShift != 0 || declaration.lineShift != 0)) {
+                settle(declaration);
+            }
+            return tokens.get(index);
+        }
+
+        @Override
+        public int size() {
+            return tokens.size();
+        }
+    };
+
+    IncrementalDocument(String source) {
+        tokens.add(new Token(TokenType.EOF, "", null, 1, 0));
+        edit(0, 0, source);
+    }
+
+    String source() {
+        return source;
+    }
+
+    List<Token> tokens() {
+        return current;
+    }
+
+    // The parsed declarations, leaving out any that had a syntax error.
+    List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>(declarations.size());
+        for (Declaration declaration : declarations) {
+            if (declaration.stmt != null) statements.add(declaration.stmt);
+        }
+        return statements;
+    }
+
+    List<Diagnostic> diagnostics() {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (ScanError error : scanErrors) {
+            diagnostics.add(new Diagnostic(null, error.line, error.message));
+        }
+        for (Declaration declaration : declarations) {
+            for (Diagnostic diagnostic : declaration.diagnostics) {
+                diagnostics.add(moved(diagnostic, declaration.lineShift));
+            }
+        }
+        diagnostics.sort((a, b) -> Integer.compare(a.line(), b.line()));
+        return diagnostics;
+    }
+
+    // Replaces the characters from start up to end with the replacement.
+    void edit(int start, int end, String replacement) {
+        if (start < 0 || end < start || end > source.length()) {
+            throw new IndexOutOfBoundsException(
+                    "Edit range " + start + ".." + end + " is outside the document.");
+        }
+
+        int delta = replacement.length() - (end - start);
+        int lineDelta = countLines(replacement) - countLines(source.substring(start, end));
+        source = source.substring(0, start) + replacement + source.substring(end);
+
+        List<Diagnostic> collected = new ArrayList<>();
+        Lox.Reporter reporter = Lox.reporter();
+        List<Diagnostic> saved = reporter.diagnostics;
+        boolean hadError = reporter.hadError;
+        reporter.diagnostics = collected;
+        try {
+            int[] changed = rescan(start, end, delta, lineDelta, collected);
+            reparse(changed[0], changed[1], changed[2], collected);
+        } finally {
+            reporter.diagnostics = saved;
+            reporter.hadError = hadError;
+        }
+    }
+
+    // Returns the index of the first token to reparse from, the index just
+    // past the new tokens, and where in the declarations the reparsed ones
+    // go.
+    private int[] rescan(int start, int end, int delta, int lineDelta,
+                         List<Diagnostic> collected) {
+        // The scanner looks at most two characters past a token, as in "1.",
+        // so the two tokens before the edit are rescanned too.
+        int restart = Math.max(0, lastTokenBefore(start) - 1);
+        int offset = 0;
+        int line = 1;
+        if (restart < tokens.size() && offset(restart) < start) {
+            // A token's line is the one it ends on, which differs for
+            // strings that span lines.
+            offset = offset(restart);
+            line = line(restart) - countLines(tokens.get(restart).lexeme);
+        }
+
+        // Scan until a new token starts where an old token that followed
+        // the edit used to. The scanner keeps no state between tokens other
+        // than its position, so from there on the old tokens are still right.
+        Scanner scanner = new Scanner(source, offset, line);
+        List<Token> scanned = new ArrayList<>();
+        List<ScanError> found = new ArrayList<>();
+        int resync = restart;
+        while (true) {
+            int anchor = scanner.position();
+            Token token = scanner.nextToken();
+            for (Diagnostic error : collected) {
+                found.add(new ScanError(anchor, error.line(), error.message()));
+            }
+            collected.clear();
+
+            while (offset(resync) < end || offset(resync) + delta < token.offset) {
+                resync++;
+            }
+            if (offset(resync) + delta == token.offset) break;
+            scanned.add(token);
+        }
+
+        // The old scanner errors in the rescanned stretch were found again.
+        int rescanEnd = offset(resync);
+        List<ScanError> errors = new ArrayList<>();
+        for (ScanError error : scanErrors) {
+            if (error.offset < offset) errors.add(error);
+        }
+        errors.addAll(found);
+        for (ScanError error : scanErrors) {
+            if (error.offset >= rescanEnd) {
+                error.offset += delta;
+                error.line += lineDelta;
+                errors.add(error);
+            }
+        }
+        scanErrors = errors;
+
+        // The declarations holding a rescanned token are parsed again, and so
+        // is one that ends right before them, since the parser looks one
+        // token past a declaration. Their tokens are settled where they are
+        // now and they are dropped. The declarations after them move.
+        int first = 0;
+        while (first < declarations.size() && declarations.get(first).end < restart) {
+            first++;
+        }
+        int from = first < declarations.size()
+                ? declarations.get(first).start
+                : declarations.isEmpty() ? 0 : declarations.get(declarations.size() - 1).end;
+        int last = first;
+        while (last < declarations.size() && declarations.get(last).start < resync) {
+            Declaration declaration = declarations.get(last++);
+            for (int i = declaration.start; i < declaration.end; i++) {
+                boolean after = i >= resync;
+                tokens.set(i, moved(tokens.get(i),
+                        declaration.offsetShift + (after ? delta : 0),
+                        declaration.lineShift + (after ? lineDelta : 0)));
+            }
+        }
+
+        int countDelta = scanned.size() - (resync - restart);
+        for (Declaration declaration : declarations.subList(last, declarations.size())) {
+            declaration.start += countDelta;
+            declaration.end += countDelta;
+            declaration.offsetShift += delta;
+            declaration.lineShift += lineDelta;
+            if (lineDelta != 0) shiftLines(declaration.stmt, lineDelta);
+        }
+        declarations.subList(first, last).clear();
+
+        int eof = tokens.size() - 1;
+        tokens.set(eof, moved(tokens.get(eof), delta, lineDelta));
+        List<Token> changed = tokens.subList(restart, resync);
+        changed.clear();
+        changed.addAll(scanned);
+
+        return new int[] {from, restart + scanned.size(), first};
+    }
+
+    // Returns the declaration holding the token at the index, or null for
+    // the EOF and for tokens being reparsed.
+    private Declaration owner(int index) {
+        int low = 0;
+        int high = declarations.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Declaration declaration = declarations.get(middle);
+            if (index < declaration.start) {
+                high = middle - 1;
+            } else if (index >= declaration.end) {
+                low = middle + 1;
+            } else {
+                return declaration;
+            }
+        }
+        return null;
+    }
+
+    private int offset(int index) {
+        Declaration declaration = owner(index);
+        int shift = declaration == null ? 0 : declaration.offsetShift;
+        return tokens.get(index).offset + shift;
+    }
+
+    private int line(int index) {
+        Declaration declaration = owner(index);
+        int shift = declaration == null ? 0 : declaration.lineShift;
+        return tokens.get(index).line + shift;
+    }
+
+    private void settle(Declaration declaration) {
+        for (int i = declaration.start; i < declaration.end; i++) {
+            tokens.set(i, moved(tokens.get(i), declaration.offsetShift, declaration.lineShift));
+        }
+        List<Diagnostic> diagnostics = new ArrayList<>(declaration.diagnostics.size());
+        for (Diagnostic diagnostic : declaration.diagnostics) {
+            diagnostics.add(moved(diagnostic, declaration.lineShift));
+        }
+        declaration.diagnostics = diagnostics;
+        declaration.offsetShift = 0;
+        declaration.lineShift = 0;
+    }
+
+    private static Token moved(Token token, int offsetShift, int lineShift) {
+        if (offsetShift == 0 && lineShift == 0) return token;
+        return new Token(token.type, token.lexeme, token.literal,
+                token.line + lineShift, token.offset + offsetShift);
+    }
+
+    private static Diagnostic moved(Diagnostic diagnostic, int lineShift) {
+        if (lineShift == 0) return diagnostic;
+        return new Diagnostic(diagnostic.token(), diagnostic.line() + lineShift,
+                diagnostic.message());
+    }
+
+    // Returns the index of the last token starting before the offset, or -1.
+    private int lastTokenBefore(int offset) {
+        int low = 0;
+        int high = tokens.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (offset(middle) < offset) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private void reparse(int from, int changedEnd, int first, List<Diagnostic> collected) {
+        // Parse declarations until one would start where an old declaration
+        // that comes after every changed token does.
+        Parser parser = new Parser(current);
+        List<Declaration> parsed = new ArrayList<>();
+        int position = from;
+        int reuse = first;
+        while (tokens.get(position).type != TokenType.EOF) {
+            if (position >= changedEnd) {
+                while (reuse < declarations.size() && declarations.get(reuse).start < position) {
+                    reuse++;
+                }
+                if (reuse < declarations.size() && declarations.get(reuse).start == position) {
+                    break;
+                }
+            }
+
+            Stmt stmt = parser.declarationAt(position);
+            parsed.add(new Declaration(position, parser.position(), stmt,
+                    new ArrayList<>(collected)));
+            collected.clear();
+            position = parser.position();
+        }
+        if (tokens.get(position).type == TokenType.EOF) reuse = declarations.size();
+
+        List<Declaration> changed = declarations.subList(first, reuse);
+        changed.clear();
+        changed.addAll(parsed);
+    }
+
+    private static void shiftLines(Stmt stmt, int lineDelta) {
+        if (stmt == null) return;
+        stmt.line += lineDelta;
+        switch (stmt) {
+            case Stmt.Block block -> {
+                for (Stmt statement : block.statements) shiftLines(statement, lineDelta);
+            }
+            case Stmt.Class classStmt -> {
+                for (Stmt method : classStmt.methods) shiftLines(method, lineDelta);
+            }
+            case Stmt.Function function -> {
+                for (Stmt statement : function.body) shiftLines(statement, lineDelta);
+            }
+            case Stmt.If ifStmt -> {
+                shiftLines(ifStmt.thenBranch, lineDelta);
+                shiftLines(ifStmt.elseBranch, lineDelta);
+            }
+            case Stmt.While whileStmt -> shiftLines(whileStmt.body, lineDelta);
+            case Stmt.Breakpoint breakpoint -> shiftLines(breakpoint.statement, lineDelta);
+            default -> { }
+        }
+    }
+
+    private static int countLines(String text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,204 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Replaces hot calls to small functions with the function's body. A call
+// site that has made THRESHOLD direct calls (see Interpreter.DirectCall) to
+// a function whose whole body is "return expression;" gets a copy of that
+// expression with the parameters replaced by the arguments, and from then on
+// evaluates the copy instead of calling. That skips the argument list, the
+// frame and the Return exception, which for a helper like square(x) cost
+// far more than its body.
+//
+// The copy is only the same as the call when evaluating the arguments late,
+// more than once or not at all makes no difference, so every argument must
+// be a literal, a local of the caller or a stable global. A global argument
+// is only allowed when the body makes no calls, which could change it
+// between the call and the read. The function mustn't call itself. Calls in
+// the body are inlined in turn, up to MAX_DEPTH deep.
+//
+// The inlining rests on the globals naming the inlined functions staying
+// stable. The call site checks their Stables before using the copy, and
+// goes back to calling for good once any of them is written.
+//
+// Nothing is inlined with a budget on, since a budget charges every call,
+// or with a tool on, since the tools want to see them.
+//
+// Run with -Dlox.inline=false to turn it off, or -Dlox.inline.threshold=n to
+// change how many calls make a site hot.
+final class Inliner {
+    static final boolean ENABLED = !"false".equals(System.getProperty("lox.inline"));
+    static final int THRESHOLD = Integer.getInteger("lox.inline.threshold", 100);
+    private static final int MAX_DEPTH = 4;
+
+    // Stops a call site from being tried again.
+    private static final int NEVER = Integer.MIN_VALUE;
+
+    static final class Inlined {
+        final List<Environment.Stable> guards;
+        final Expr body;
+        // The body compiled, for closure mode.
+        volatile ClosureCompiler.ExprCode code = null;
+
+        Inlined(List<Environment.Stable> guards, Expr body) {
+            this.guards = guards;
+            this.body = body;
+        }
+
+        boolean valid(Environment globals) {
+            for (Environment.Stable guard : guards) {
+                if (!guard.valid || guard.owner != globals) return false;
+            }
+            return true;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final List<Environment.Stable> guards = new ArrayList<>();
+    private final Set<LoxFunction> inlining = new HashSet<>();
+
+    private Inliner(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Inlines the callee at the call site, or returns null and marks the
+    // site so that it isn't tried again.
+    static Inlined inline(Interpreter interpreter, Expr.Call call,
+                          Interpreter.DirectCall direct) {
+        Inliner inliner = new Inliner(interpreter);
+        inliner.guards.add(direct.stable());
+        Expr body = inliner.expand(direct.function(), call.arguments, 0);
+        if (body == null) {
+            call.calls = NEVER;
+            return null;
+        }
+        return new Inlined(List.copyOf(inliner.guards), body);
+    }
+
+    // Returns the function's body with the arguments in place of the
+    // parameters, or null if it can't be inlined.
+    private Expr expand(LoxFunction function, List<Expr> arguments, int depth) {
+        Stmt.Function declaration = function.declaration();
+        if (declaration.body.size() != 1 ||
+                !(declaration.body.get(0) instanceof Stmt.Return returnStmt) ||
+                returnStmt.value == null ||
+                arguments.size() != declaration.params.size()) {
+            return null;
+        }
+
+        boolean globalArgument = false;
+        for (Expr argument : arguments) {
+            switch (argument) {
+                case Expr.Literal literal -> { }
+                case Expr.Variable variable -> {
+                    if (variable.slot < 0) {
+                        Environment.Stable stable = interpreter.globals.stable(variable.global);
+                        if (stable == null) return null;
+                        guards.add(stable);
+                        globalArgument = true;
+                    }
+                }
+                default -> {
+                    return null;
+                }
+            }
+        }
+
+        if (!inlining.add(function)) return null;
+        Copy copy = new Copy(function, arguments, depth);
+        Expr body = copy.expr(returnStmt.value);
+        inlining.remove(function);
+        if (body == null || (globalArgument && copy.calls)) return null;
+        return body;
+    }
+
+    // Copies a body for one call site. The nodes are copied rather than
+    // shared, so that the copy gets inline caches of its own.
+    private final class Copy {
+        final LoxFunction function;
+        final List<Expr> arguments;
+        final int depth;
+        boolean calls = false;
+
+        Copy(LoxFunction function, List<Expr> arguments, int depth) {
+            this.function = function;
+            this.arguments = arguments;
+            this.depth = depth;
+        }
+
+        // Returns null for anything that can't be copied.
+        Expr expr(Expr expr) {
+            return switch (expr) {
+                case Expr.Literal literal -> literal;
+                case Expr.Grouping grouping -> expr(grouping.expression);
+                case Expr.Variable variable -> {
+                    // The body's only locals are the parameters.
+                    if (variable.slot >= 0) yield arguments.get(variable.slot);
+                    Expr.Variable global = new Expr.Variable(variable.name);
+                    global.global = variable.global;
+                    yield global;
+                }
+                case Expr.Binary binary -> {
+                    Expr left = expr(binary.left);
+                    Expr right = expr(binary.right);
+                    if (left == null || right == null) yield null;
+                    yield new Expr.Binary(left, binary.operator, right);
+                }
+                case Expr.Logical logical -> {
+                    Expr left = expr(logical.left);
+                    Expr right = expr(logical.right);
+                    if (left == null || right == null) yield null;
+                    yield new Expr.Logical(left, logical.operator, right);
+                }
+                case Expr.Unary unary -> {
+                    Expr right = expr(unary.right);
+                    if (right == null) yield null;
+                    yield new Expr.Unary(unary.operator, right);
+                }
+                case Expr.Call call -> call(call);
+                // Assigning to a parameter would assign to the argument.
+                case Expr.Assign assign -> null;
+                case Expr.Get get -> null;
+                case Expr.Set set -> null;
+                case Expr.Super superExpr -> null;
+                case Expr.This thisExpr -> null;
+            };
+        }
+
+        Expr call(Expr.Call call) {
+            calls = true;
+            Expr callee = expr(call.callee);
+            if (callee == null) return null;
+            List<Expr> arguments = new ArrayList<>(call.arguments.size());
+            for (Expr argument : call.arguments) {
+                Expr copied = expr(argument);
+                if (copied == null) return null;
+                arguments.add(copied);
+            }
+
+            if (callee instanceof Expr.Variable variable && variable.slot < 0) {
+                Environment.Stable stable = interpreter.globals.stable(variable.global);
+                if (stable != null && stable.value == function) return null;
+                if (depth < MAX_DEPTH && stable != null &&
+                        stable.value instanceof LoxFunction nested) {
+                    int mark = guards.size();
+                    Expr body = expand(nested, arguments, depth + 1);
+                    if (body != null) {
+                        guards.add(stable);
+                        return body;
+                    }
+                    guards.subList(mark, guards.size()).clear();
+                }
+            }
+
+            Expr.Call copy = new Expr.Call(callee, call.paren, arguments);
+            // Calls left in a copy aren't inlined later, which could go on
+            // forever for functions that call each other.
+            copy.calls = NEVER;
+            return copy;
+        }
+    }
+}
@@ -1,39 +1,139 @@
 package com.craftinginterpreters.lox;
 
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    final Environment globals;
+    final PrintStream out;
+    // The locals of every running function, one frame after another, as laid
+    // out by Locals. base is where the current frame starts and top where the
+    // next one will. Each interpreter runs on one thread, so each task gets
+    // its own stack.
+    Object[] stack = new Object[256];
+    int base = 0;
+    int top = 0;
+    // How many bytes of IrInterpreter's frames are on the heap for this
+    // interpreter's thread, across every call into the IR that hasn't
+    // returned.
+    long irBytes = 0;
+    // Limits on the work this interpreter may do, or null for none.
+    Budget budget = null;
+    // Where the script's allocations come from, or null when not profiling.
+    AllocationProfiler profiler = null;
+    // The Lox function running, kept only while profiling.
+    LoxFunction function = null;
+    // What has run so far, or null when coverage is off.
+    Coverage coverage = null;
+    // The debugger attached, or null.
+    Debugger debugger = null;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable(){
-           @Override
-           public int arity() {return 0;}
-
-           @Override
-           public Object call(Interpreter interpreter,
-                              List<Object> arguments) {
-               return (double) System.currentTimeMillis() / 1000.0;
-           }
+        this(System.out);
+    }
+
+    Interpreter(PrintStream out) {
+        this.globals = new Environment();
+        this.out = out;
+        // Natives such as clock() are defined on first use by NativeModules.
+    }
+
+    // Creates the interpreter for a task spawned by this one.
+    Interpreter fork() {
+        return new Interpreter(this);
+    }
 
-           @Override
-           public String toString() {return "<native fn>"; }
-        });
+    // An interpreter for a spawned task. It shares the globals and output of
+    // the one that spawned it but has its own stack of locals, which is what
+    // keeps tasks that run at the same time out of each other's frames.
+    Interpreter(Interpreter parent) {
+        this.globals = parent.globals;
+        this.out = parent.out;
+        this.budget = parent.budget;
+        this.profiler = parent.profiler;
+        this.coverage = parent.coverage;
+        this.debugger = parent.debugger;
+    }
+
+    // Whether a tool that watches the code run is on, which keeps functions
+    // out of the JIT.
+    boolean instrumented() {
+        return profiler != null || coverage != null || debugger != null;
     }
 
     void interpret(List<Stmt> statements) {
+        int frame = push(Locals.resolve(statements, globals));
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } finally {
+            pop(frame);
+        }
+    }
+
+    // Runs the program in closure mode. See ClosureCompiler.
+    void interpretCompiled(List<Stmt> statements) {
+        int frame = push(Locals.resolve(statements, globals));
+        try {
+            ClosureCompiler.StmtCode[] code = new ClosureCompiler().compile(statements);
+            ClosureCompiler.execute(code, this);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            pop(frame);
         }
     }
 
+    // Starts a frame of the given size on top of the stack and returns the
+    // base of the frame it replaces, to hand back to pop().
+    int push(int size) {
+        return push(size, 0);
+    }
+
+    // Starts a frame whose first slots are the count arguments that
+    // pushArgument() left on top of the stack.
+    int push(int size, int count) {
+        int previous = base;
+        base = top - count;
+        top = base + size;
+        if (top > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(top, stack.length * 2));
+        }
+        return previous;
+    }
+
+    // Claims the slot on top of the stack for an argument just evaluated.
+    // Calls made while evaluating the next one push their frames above it.
+    // If the call fails before its frame starts, the arguments are cleared
+    // along with the caller's frame.
+    void pushArgument(Object value) {
+        if (top == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top++] = value;
+    }
+
+    // Takes back the arguments on top of the stack, for a callee that wants
+    // them as a list after all.
+    List<Object> popArguments(int count) {
+        List<Object> arguments = new ArrayList<>(count);
+        for (int i = top - count; i < top; i++) arguments.add(stack[i]);
+        Arrays.fill(stack, top - count, top, null);
+        top -= count;
+        return arguments;
+    }
+
+    // Ends the current frame, clearing it so it doesn't keep values alive.
+    void pop(int previous) {
+        Arrays.fill(stack, base, top, null);
+        top = base;
+        base = previous;
+    }
+
    @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
        return expr.value;
@@ -46,13 +146,28 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
        Object left = evaluate(expr.left);
 
        if (expr.operator.type == TokenType.OR) {
-           if (isTruthy(left)) return left;
+           if (decided(expr.id, isTruthy(left))) return left;
        } else {
-           if (!isTruthy(left)) return left;
+           if (decided(expr.id, !isTruthy(left))) return left;
        }
         return evaluate(expr.right);
     }
 
+    // Tests the condition of the If or While with the coverage id, recording
+    // which way it went.
+    boolean condition(int id, Object value) {
+        boolean truthy = isTruthy(value);
+        if (coverage != null) coverage.condition(id, truthy);
+        return truthy;
+    }
+
+    // Passes on whether the left operand decided the Logical with the
+    // coverage id, recording it.
+    boolean decided(int id, boolean decided) {
+        if (coverage != null) coverage.logical(id, decided);
+        return decided;
+    }
+
 
 
     @Override
@@ -77,10 +192,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
    public Object visitUnaryExpr(Expr.Unary expr) {
        Object right = evaluate(expr.right);
+       Object value = expr.numeric ? -(double) right : unary(expr.operator, right);
+       if (profiler != null) profiler.allocated(this, expr.operator, value);
+       return value;
+   }
 
-        switch (expr.operator.type) {
+   // The operators are static so that FlatInterpreter shares them.
+   static Object unary(Token operator, Object right) {
+        switch (operator.type) {
            case MINUS:
-               checkNumberOperand(expr.operator, right);
+               checkNumberOperand(operator, right);
                    return -(double) right;
            case BANG:
                return !isTruthy(right);
@@ -90,40 +211,48 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
    @Override
    public Object visitVariableExpr(Expr.Variable expr) {
-       return environment.get(expr.name);
+       if (expr.slot >= 0) return stack[base + expr.slot];
+       return global(expr);
+   }
+
+   // Reads a global, using the value the node has folded in for as long as
+   // the global stays stable. See Environment.
+   Object global(Expr.Variable expr) {
+       Environment.Stable stable = expr.stable;
+       if (stable != null && stable.valid && stable.owner == globals) return stable.value;
+
+       Object value = globals.get(expr.global, expr.name);
+       expr.stable = globals.stable(expr.global);
+       return value;
    }
 
 
-    @Override
-    public Object visitBinary(Expr.Binary expr) {
-        return null;
-    }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
        if (operand instanceof Double) return;
        throw new RuntimeError(operator, "Operand must be a number.");
    }
 
-   private void checkNumberOperands(Token operator, Object left, Object right) {
+   static void checkNumberOperands(Token operator, Object left, Object right) {
        if (left instanceof Double && right instanceof Double) return;
 
        throw new RuntimeError(operator, "Operands must be numbers.");
    }
 
-   private Boolean isTruthy(Object object) {
+   static boolean isTruthy(Object object) {
        if (object == null) return false;
        if (object instanceof Boolean) return (boolean)object;
        return true;
    }
 
-   private Boolean isEqual(Object a, Object b) {
+   static boolean isEqual(Object a, Object b) {
        if (a == null && b == null) return true;
        if (a == null) return false;
 
        return a.equals(b);
    }
 
-   private String stringify(Object object) {
+   static String stringify(Object object) {
        if (object == null) return "nil";
 
        if (object instanceof Double) {
@@ -141,34 +270,37 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
        return evaluate(expr.expression);
    }
 
-   private Object evaluate(Expr expr) {
+   // Overridden by SwitchInterpreter to dispatch without the visitor.
+   Object evaluate(Expr expr) {
        return expr.accept(this);
    }
 
-   private void execute(Stmt stmt) {
+   void execute(Stmt stmt) {
+       if (coverage != null) coverage.hit(stmt.id);
        stmt.accept(this);
    }
 
-   // This new method executes a list of statements in the context of a given
-   //environment.
-   void executeBlock(List<Stmt> statements, Environment environment) {
-       Environment previous = this.environment;
-       try {
-           this.environment = environment;
-
-           for (Stmt statement : statements) {
-               execute(statement);
-           }
-           // As is always good practice in Java, it restores the previous environment
-           //using a finally clause. That way it gets restored even if an exception is thrown.
-       } finally {
-           this.environment = previous;
+   void executeBlock(List<Stmt> statements) {
+       for (Stmt statement : statements) {
+           execute(statement);
        }
    }
 
+    // A block's variables already have their slots in the frame, so
+    // entering one costs nothing.
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment((environment)));
+        if (budget != null) budget.allocateEnvironment();
+        executeBlock(stmt.statements);
+        return null;
+    }
+
+    // A breakpoint is only in the tree while the debugger has one on the
+    // statement or is stepping. See Debugger.
+    @Override
+    public Void visitBreakpointStmt(Stmt.Breakpoint stmt) {
+        debugger.reached(this, stmt);
+        execute(stmt.statement);
         return null;
     }
 
@@ -187,7 +319,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt);
-        environment.define(stmt.name.lexeme, function);
+        define(stmt.slot, stmt.name, function);
         return null;
     }
 
@@ -196,7 +328,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     //Otherwise, if there is an else branch, it executes that.
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate((stmt.condition)))) {
+        if (condition(stmt.id, evaluate(stmt.condition))) {
             execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
             execute(stmt.elseBranch);
@@ -207,7 +339,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
    public Void visitPrintStmt(Stmt.Print stmt) {
        Object value = evaluate(stmt.expression);
-       System.out.println(stringify(value));
+       out.println(stringify(value));
        return null;
    }
 
@@ -220,26 +352,46 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new Return(value);
     }
 
+    // Only a generator's body can yield, and it always runs on
+    // IrInterpreter's frames, which can be suspended. See LoxGenerator.
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        throw new IllegalStateException("Generators run as IR.");
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
        Object value = null;
        if (stmt.initializer != null) {
            value = evaluate(stmt.initializer);
        }
-         environment.define(stmt.name.lexeme, value);
-        return null;
+       define(stmt.slot, stmt.name, value);
+       return null;
+    }
+
+    void define(int slot, Token name, Object value) {
+        if (slot >= 0) {
+            stack[base + slot] = value;
+        } else {
+            globals.define(name.lexeme, value);
+        }
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
        Object value = evaluate(expr.value);
-       environment.assign(expr.name, value);
+       if (expr.slot >= 0) {
+           stack[base + expr.slot] = value;
+       } else {
+           globals.assign(expr.global, expr.name, value);
+       }
        return value;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-       while (isTruthy(evaluate(stmt.condition))) {
+       while (condition(stmt.id, evaluate(stmt.condition))) {
+           if (budget != null) budget.tick(stmt.keyword);
            execute(stmt.body);
        }
         return null;
@@ -255,26 +407,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitBinaryExpr(Expr.Binary expr) {
        Object left = evaluate(expr.left);
        Object right = evaluate(expr.right);
+       Object value = expr.numeric
+               ? numeric(expr.operator, (double) left, (double) right)
+               : binary(expr.operator, left, right);
+       if (profiler != null) profiler.allocated(this, expr.operator, value);
+       return value;
+   }
+
+   // The operators for a node that Types proved only ever gets numbers, so
+   // it needs no checks.
+   static Object numeric(Token operator, double left, double right) {
+        return switch (operator.type) {
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            case MINUS -> left - right;
+            case PLUS -> left + right;
+            case SLASH -> left / right;
+            case STAR -> left * right;
+            default -> binary(operator, left, right);
+        };
+   }
 
-        switch (expr.operator.type) {
+   static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             }
             case LESS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             }
             case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
             }
             case MINUS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             }
             case BANG_EQUAL -> {
@@ -293,17 +468,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return stringify(left) + stringify(right);
                 }
 
-                //throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
+                //throw new RuntimeError(operator, "Operands must be two numbers or two strings");
             }
             case SLASH -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if (right.equals(0)) {
-                    throw new RuntimeError(expr.operator, "Cannot divide by 0!");
+                    throw new RuntimeError(operator, "Cannot divide by 0!");
                 }
                 return (double) left / (double) right;
             }
             case STAR -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
             }
         }
@@ -312,28 +487,123 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        Inliner.Inlined inlined = inlined(expr);
+        if (inlined != null) return evaluate(inlined.body);
+
+        DirectCall direct = directCall(expr);
+        Object callee = direct != null ? direct.function() : evaluate(expr.callee);
+
+        // A Lox function's arguments are the first slots of its frame, so
+        // they are evaluated straight onto the stack and no list is built.
+        if (callee instanceof LoxFunction function && function.takesStack(this)) {
+            for (Expr argument : expr.arguments) pushArgument(evaluate(argument));
+            if (direct == null) link(expr, function);
+            return function.invokeOnStack(this, expr.arguments.size());
+        }
+        return callWithList(expr, direct, callee);
+    }
 
+    // Kept out of visitCallExpr() so that it stays small enough for the JVM
+    // to inline.
+    private Object callWithList(Expr.Call expr, DirectCall direct, Object callee) {
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        if (profiler != null) profiler.allocated(this, expr.paren, arguments);
+        if (direct != null) return direct.function().call(this, arguments);
+        return call(expr, callee, arguments);
+    }
+
+    // A call site whose callee is a stable global holding a Lox function
+    // calls it directly. The callee needn't be looked up, and its type and
+    // arity were already checked when the site was linked. The site relinks
+    // through call() as soon as the global is written.
+    record DirectCall(Environment.Stable stable, LoxFunction function) {}
+
+    DirectCall directCall(Expr.Call expr) {
+        if (expr.inlineCache instanceof DirectCall direct &&
+                direct.stable().valid && direct.stable().owner == globals) {
+            return direct;
+        }
+        return null;
+    }
+
+    // Returns the callee's body inlined at the call site, for as long as the
+    // globals it rests on stay stable, or null. A direct call site is
+    // inlined once it gets hot. See Inliner.
+    Inliner.Inlined inlined(Expr.Call expr) {
+        Object cache = expr.inlineCache;
+        if (cache instanceof Inliner.Inlined inlined) {
+            if (inlined.valid(globals)) return inlined;
+            expr.inlineCache = null;
+            return null;
+        }
+        if (Inliner.ENABLED && cache instanceof DirectCall direct &&
+                ++expr.calls == Inliner.THRESHOLD &&
+                direct.stable().valid && direct.stable().owner == globals &&
+                // The tools want to see the calls, and a budget charges for
+                // them.
+                !instrumented() && budget == null) {
+            Inliner.Inlined inlined = Inliner.inline(this, expr, direct);
+            if (inlined != null) expr.inlineCache = inlined;
+            return inlined;
+        }
+        return null;
+    }
+
+    // Shared with the closure compiler so both execution modes call the same way.
+    Object call(Expr.Call expr, Object callee, List<Object> arguments) {
+        LoxCallable function = callable(expr.paren, callee, arguments.size());
+        link(expr, function);
+        try {
+            if (function instanceof JavaCallable java) {
+                return java.call(expr, arguments);
+            }
+            return function.call(this, arguments);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        }
+
+    }
+
+    // Checks the arguments that a call to a Lox function left on the stack
+    // and lets the site call it directly from now on if it can. A direct
+    // call site was checked when it was linked.
+    static void link(Expr.Call expr, LoxFunction function) {
+        link(expr, callable(expr.paren, function, expr.arguments.size()));
+    }
+
+    private static void link(Expr.Call expr, LoxCallable function) {
+        if (function instanceof LoxFunction target &&
+                expr.callee instanceof Expr.Variable variable &&
+                variable.stable != null && variable.stable.value == target) {
+            expr.inlineCache = new DirectCall(variable.stable, target);
+        }
+    }
+
+    // Checks that the callee is something that can be called with this many
+    // arguments.
+    static LoxCallable callable(Token paren, Object callee, List<Object> arguments) {
+        return callable(paren, callee, arguments.size());
+    }
+
+    static LoxCallable callable(Token paren, Object callee, int count) {
         //  The runtime representation of a Lox string is a
         //Java string, so when we cast that to LoxCallable, the JVM will throw a
         //ClassCastException. We don’t want our interpreter to vomit out some nasty
         //Java stack trace and die. Instead, we need to check the type ourselves first.
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions & classes.");
+        if (!(callee instanceof LoxCallable function)) {
+            throw new RuntimeError(paren, "Can only call functions & classes.");
         }
 
-        LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
+        // A negative arity means the callee checks the count itself.
+        if (function.arity() >= 0 && count != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
                     function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    count + ".");
         }
-        return function.call(this, arguments);
-
+        return function;
     }
 
     @Override
@@ -0,0 +1,576 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// A mid-level representation of a function for optimizations to work on: a
+// control-flow graph of basic blocks in SSA form. The syntax tree says what
+// the programmer wrote, with a for loop already desugared into blocks and a
+// while. Here every local is assigned exactly once, where it is defined, and
+// control flow is explicit, so a pass can see that a value is the same one
+// everywhere it is used without looking at how the code got there.
+//
+// Every instruction is a value, numbered by id, except for the terminator
+// that ends each block and tells where control goes next. A variable that
+// has different values depending on the path taken gets a Phi at the top of
+// the block where the paths meet, with one operand for each predecessor, in
+// the same order as Block.predecessors.
+//
+// IrBuilder lowers a function to this form, PassManager optimizes it and
+// IrInterpreter runs it.
+final class Ir {
+    private Ir() {
+    }
+
+    static final class Function {
+        final Token name;
+        final int arity;
+        // The entry block comes first.
+        final List<Block> blocks = new ArrayList<>();
+        // The number of ids handed out. After renumber(), the ids are
+        // exactly 0 to valueCount - 1.
+        int valueCount = 0;
+
+        Function(Token name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        Block entry() {
+            return blocks.get(0);
+        }
+
+        Block newBlock() {
+            Block block = new Block(blocks.size());
+            blocks.add(block);
+            return block;
+        }
+
+        <T extends Instr> T add(Block block, T instr) {
+            instr.block = block;
+            instr.id = valueCount++;
+            block.instrs.add(instr);
+            return instr;
+        }
+
+        // Gives the instruction an id and puts it in the place of another in
+        // its block.
+        <T extends Instr> T replaceAt(Block block, int index, T instr) {
+            instr.block = block;
+            instr.id = valueCount++;
+            block.instrs.set(index, instr);
+            return instr;
+        }
+
+        // Makes every use of one value use another instead.
+        void replaceUses(Instr value, Instr replacement) {
+            for (Block block : blocks) {
+                for (Phi phi : block.phis) phi.operands.replaceAll(
+                        operand -> operand == value ? replacement : operand);
+                for (Instr instr : block.instrs) instr.operands.replaceAll(
+                        operand -> operand == value ? replacement : operand);
+                if (block.terminator != null) block.terminator.operands.replaceAll(
+                        operand -> operand == value ? replacement : operand);
+            }
+        }
+
+        // Removes the edge between two blocks, along with the operands the
+        // successor's phis have for it.
+        void removeEdge(Block from, Block to) {
+            int index = to.predecessors.indexOf(from);
+            to.predecessors.remove(index);
+            for (Phi phi : to.phis) phi.operands.remove(index);
+        }
+
+        // The blocks reachable from the entry, each after all of its
+        // predecessors except along back edges.
+        List<Block> reversePostorder() {
+            List<Block> order = new ArrayList<>();
+            Set<Block> visited = new HashSet<>();
+            // An explicit stack, since a long function would overflow the
+            // Java one.
+            Deque<Block> stack = new ArrayDeque<>();
+            Deque<Integer> next = new ArrayDeque<>();
+            stack.push(entry());
+            next.push(0);
+            visited.add(entry());
+            while (!stack.isEmpty()) {
+                Block block = stack.peek();
+                int index = next.pop();
+                List<Block> successors = block.successors();
+                if (index < successors.size()) {
+                    next.push(index + 1);
+                    Block successor = successors.get(index);
+                    if (visited.add(successor)) {
+                        stack.push(successor);
+                        next.push(0);
+                    }
+                } else {
+                    stack.pop();
+                    order.add(block);
+                }
+            }
+            Collections.reverse(order);
+            return order;
+        }
+
+        // Drops the blocks that can't be reached from the entry. Returns
+        // whether there were any.
+        boolean removeUnreachable() {
+            Set<Block> reachable = new HashSet<>(reversePostorder());
+            if (reachable.size() == blocks.size()) return false;
+            for (Block block : blocks) {
+                if (reachable.contains(block)) continue;
+                for (Block successor : block.successors()) {
+                    if (reachable.contains(successor)) removeEdge(block, successor);
+                }
+            }
+            blocks.retainAll(reachable);
+            return true;
+        }
+
+        // Puts the blocks in reverse postorder and numbers them and the
+        // values from 0 up, so that the values fit a frame of valueCount.
+        void renumber() {
+            List<Block> order = reversePostorder();
+            blocks.clear();
+            blocks.addAll(order);
+            int id = 0;
+            for (int i = 0; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                block.id = i;
+                for (Phi phi : block.phis) phi.id = id++;
+                for (Instr instr : block.instrs) instr.id = id++;
+            }
+            valueCount = id;
+        }
+
+        @Override
+        public String toString() {
+            return format(null);
+        }
+
+        // Lists the function with the values live into each block.
+        String dump() {
+            return format(Liveness.of(this));
+        }
+
+        private String format(Liveness liveness) {
+            StringBuilder text = new StringBuilder();
+            text.append("fun ").append(name.lexeme).append("/").append(arity).append("\n");
+            for (Block block : blocks) {
+                text.append(block).append(":");
+                if (!block.predecessors.isEmpty()) {
+                    text.append(" <-");
+                    for (Block predecessor : block.predecessors) {
+                        text.append(" ").append(predecessor);
+                    }
+                }
+                text.append("\n");
+                Set<Instr> live = liveness != null ? liveness.liveIn(block) : Set.of();
+                if (!live.isEmpty()) text.append("    ; live in: ").append(names(live)).append("\n");
+                for (Phi phi : block.phis) text.append("    ").append(phi).append("\n");
+                for (Instr instr : block.instrs) text.append("    ").append(instr).append("\n");
+                text.append("    ").append(block.terminator).append("\n");
+            }
+            return text.toString();
+        }
+
+        private static String names(Set<Instr> values) {
+            return String.join(" ", values.stream()
+                    .sorted((a, b) -> Integer.compare(a.id, b.id))
+                    .map(Instr::name).toList());
+        }
+    }
+
+    static final class Block {
+        int id;
+        final List<Block> predecessors = new ArrayList<>();
+        final List<Phi> phis = new ArrayList<>();
+        final List<Instr> instrs = new ArrayList<>();
+        // Null only while the block is being built.
+        Terminator terminator = null;
+
+        Block(int id) {
+            this.id = id;
+        }
+
+        List<Block> successors() {
+            return terminator == null ? List.of() : terminator.successors();
+        }
+
+        @Override
+        public String toString() {
+            return "b" + id;
+        }
+    }
+
+    // An instruction, and the value it produces if it isn't a terminator.
+    abstract static sealed class Instr
+            permits Const, Param, Phi, Unary, Binary, GlobalGet, GlobalSet,
+                    Call, Print, MakeFunction, Yield, Terminator {
+        int id = -1;
+        Block block = null;
+        final List<Instr> operands;
+
+        Instr(Instr... operands) {
+            this.operands = new ArrayList<>(Arrays.asList(operands));
+        }
+
+        // Whether removing the instruction, when nothing uses its value,
+        // changes nothing. Operators that can fail on the wrong operands
+        // aren't.
+        boolean pure() {
+            return false;
+        }
+
+        String name() {
+            return "v" + id;
+        }
+
+        String operand(int index) {
+            return operands.get(index).name();
+        }
+
+        @Override
+        public String toString() {
+            return name() + " = ";
+        }
+    }
+
+    static final class Const extends Instr {
+        final Object value;
+
+        Const(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean pure() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            String text = value instanceof String string
+                    ? "\"" + string + "\"" : Interpreter.stringify(value);
+            return super.toString() + "const " + text;
+        }
+    }
+
+    static final class Param extends Instr {
+        final int index;
+
+        Param(int index) {
+            this.index = index;
+        }
+
+        @Override
+        boolean pure() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "param " + index;
+        }
+    }
+
+    static final class Phi extends Instr {
+        // The local slot the phi merges, or -1 for the value of a Logical.
+        final int slot;
+
+        Phi(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        boolean pure() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            List<String> incoming = new ArrayList<>();
+            for (int i = 0; i < operands.size(); i++) {
+                incoming.add(block.predecessors.get(i) + ": " + operand(i));
+            }
+            return super.toString() + "phi [" + String.join(", ", incoming) + "]";
+        }
+    }
+
+    static final class Unary extends Instr {
+        final Token operator;
+        // Whether the operand is known to be a number. See Types.
+        final boolean numeric;
+
+        Unary(Token operator, Instr right, boolean numeric) {
+            super(right);
+            this.operator = operator;
+            this.numeric = numeric;
+        }
+
+        @Override
+        boolean pure() {
+            return numeric || operator.type == TokenType.BANG;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + operator.lexeme + operand(0);
+        }
+    }
+
+    static final class Binary extends Instr {
+        final Token operator;
+        // Whether the operands are known to be numbers. See Types.
+        final boolean numeric;
+
+        Binary(Instr left, Token operator, Instr right, boolean numeric) {
+            super(left, right);
+            this.operator = operator;
+            this.numeric = numeric;
+        }
+
+        // Only the operators that take any operands, unless the operands
+        // are numbers.
+        @Override
+        boolean pure() {
+            if (numeric) return true;
+            return switch (operator.type) {
+                case PLUS, EQUAL_EQUAL, BANG_EQUAL -> true;
+                default -> false;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + operand(0) + " " + operator.lexeme + " " + operand(1);
+        }
+    }
+
+    // Reading a global can fail, and what it reads can change at any call,
+    // so these are never removed or merged.
+    static final class GlobalGet extends Instr {
+        final Expr.Variable variable;
+
+        GlobalGet(Expr.Variable variable) {
+            this.variable = variable;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "global " + variable.name.lexeme;
+        }
+    }
+
+    static final class GlobalSet extends Instr {
+        final Expr.Assign assign;
+
+        GlobalSet(Expr.Assign assign, Instr value) {
+            super(value);
+            this.assign = assign;
+        }
+
+        @Override
+        public String toString() {
+            return "global " + assign.name.lexeme + " = " + operand(0);
+        }
+    }
+
+    // Operands are the callee and then the arguments. The syntax node is
+    // kept for its inline cache and for the natives that take it.
+    static final class Call extends Instr {
+        final Expr.Call call;
+
+        Call(Expr.Call call, List<Instr> operands) {
+            super(operands.toArray(new Instr[0]));
+            this.call = call;
+        }
+
+        @Override
+        public String toString() {
+            List<String> arguments = new ArrayList<>();
+            for (int i = 1; i < operands.size(); i++) arguments.add(operand(i));
+            return super.toString() + "call " + operand(0) +
+                    "(" + String.join(", ", arguments) + ")";
+        }
+    }
+
+    static final class Print extends Instr {
+        Print(Instr value) {
+            super(value);
+        }
+
+        @Override
+        public String toString() {
+            return "print " + operand(0);
+        }
+    }
+
+    // A function declared in the body.
+    static final class MakeFunction extends Instr {
+        final Stmt.Function declaration;
+
+        MakeFunction(Stmt.Function declaration) {
+            this.declaration = declaration;
+        }
+
+        @Override
+        boolean pure() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "fun " + declaration.name.lexeme;
+        }
+    }
+
+    // Suspends a generator, handing the value to whoever resumed it. The
+    // generator carries on from the next instruction when it is resumed
+    // again. Only a generator's own body has these.
+    static final class Yield extends Instr {
+        Yield(Instr value) {
+            super(value);
+        }
+
+        @Override
+        public String toString() {
+            return "yield " + operand(0);
+        }
+    }
+
+    abstract static sealed class Terminator extends Instr permits Jump, Branch, Return {
+        Terminator(Instr... operands) {
+            super(operands);
+        }
+
+        abstract List<Block> successors();
+    }
+
+    static final class Jump extends Terminator {
+        Block target;
+
+        Jump(Block target) {
+            this.target = target;
+        }
+
+        @Override
+        List<Block> successors() {
+            return List.of(target);
+        }
+
+        @Override
+        public String toString() {
+            return "jump " + target;
+        }
+    }
+
+    // Goes to thenBlock if the condition is truthy, otherwise to elseBlock.
+    // The two are never the same block.
+    static final class Branch extends Terminator {
+        final Block thenBlock;
+        final Block elseBlock;
+
+        Branch(Instr condition, Block thenBlock, Block elseBlock) {
+            super(condition);
+            this.thenBlock = thenBlock;
+            this.elseBlock = elseBlock;
+        }
+
+        @Override
+        List<Block> successors() {
+            return List.of(thenBlock, elseBlock);
+        }
+
+        @Override
+        public String toString() {
+            return "branch " + operand(0) + " " + thenBlock + " " + elseBlock;
+        }
+    }
+
+    static final class Return extends Terminator {
+        Return(Instr value) {
+            super(value);
+        }
+
+        @Override
+        List<Block> successors() {
+            return List.of();
+        }
+
+        @Override
+        public String toString() {
+            return "return " + operand(0);
+        }
+    }
+
+    // Checks that the function is well formed: the edges agree with the
+    // terminators, each phi has an operand per predecessor, and every value
+    // is defined in a block that dominates its use. Throws
+    // IllegalStateException if not, which is a bug in a pass.
+    static void verify(Function function) {
+        Dominators dominators = Dominators.of(function);
+        Set<Instr> defined = new HashSet<>();
+        for (Block block : function.blocks) {
+            defined.addAll(block.phis);
+            defined.addAll(block.instrs);
+        }
+
+        for (Block block : function.blocks) {
+            if (block.terminator == null) fail(function, block + " has no terminator");
+            for (Block successor : block.successors()) {
+                if (!successor.predecessors.contains(block)) {
+                    fail(function, successor + " is missing predecessor " + block);
+                }
+            }
+            for (Block predecessor : block.predecessors) {
+                if (!predecessor.successors().contains(block)) {
+                    fail(function, predecessor + " doesn't go to " + block);
+                }
+            }
+
+            for (Phi phi : block.phis) {
+                if (phi.operands.size() != block.predecessors.size()) {
+                    fail(function, phi.name() + " has the wrong number of operands");
+                }
+                for (int i = 0; i < phi.operands.size(); i++) {
+                    Instr operand = phi.operands.get(i);
+                    if (!defined.contains(operand) ||
+                            !dominators.dominates(operand.block, block.predecessors.get(i))) {
+                        fail(function, phi.name() + " uses " + operand.name() +
+                                " where it isn't defined");
+                    }
+                }
+            }
+
+            Set<Instr> before = new HashSet<>(block.phis);
+            List<Instr> instrs = new ArrayList<>(block.instrs);
+            instrs.add(block.terminator);
+            for (Instr instr : instrs) {
+                for (Instr operand : instr.operands) {
+                    boolean dominates = operand.block == block
+                            ? before.contains(operand)
+                            : dominators.dominates(operand.block, block);
+                    if (!defined.contains(operand) || !dominates) {
+                        fail(function, instr.name() + " uses " + operand.name() +
+                                " where it isn't defined");
+                    }
+                }
+                before.add(instr);
+            }
+        }
+    }
+
+    private static void fail(Function function, String message) {
+        throw new IllegalStateException("Bad IR for " + function.name.lexeme + ": " +
+                message + ".\n" + function);
+    }
+}
@@ -0,0 +1,313 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Lowers the body of a function, after Locals has given its variables
+// slots, to the IR. The slots are the variables that go into SSA form, with
+// the algorithm of Braun et al., "Simple and Efficient Construction of
+// Static Single Assignment Form": each block remembers the value each slot
+// was last given in it, and a slot read in a block that didn't give it one
+// looks in the predecessors, through a phi where there is more than one. A
+// loop header's predecessors aren't all known until its body has been
+// lowered, so reads there get a phi that is filled in once they are.
+//
+// That makes a phi for every variable read at each join, needed or not.
+// Those whose operands are all one value are removed once the whole body is
+// lowered.
+//
+// Reading a slot before anything was stored in it gives nil, as it would in
+// the interpreter's frame.
+final class IrBuilder {
+    private final Ir.Function function;
+    private final int slots;
+    private Ir.Block current;
+
+    // The value each slot was last given in each block.
+    private final Map<Ir.Block, Ir.Instr[]> definitions = new HashMap<>();
+    // Blocks whose predecessors are all known.
+    private final Set<Ir.Block> sealed = new HashSet<>();
+    // The phis made in blocks before they were sealed.
+    private final Map<Ir.Block, List<Ir.Phi>> incomplete = new HashMap<>();
+    private Ir.Const undefined = null;
+
+    private IrBuilder(Stmt.Function declaration) {
+        this.function = new Ir.Function(declaration.name, declaration.params.size());
+        this.slots = declaration.frameSize;
+    }
+
+    static Ir.Function lower(Stmt.Function declaration) {
+        IrBuilder builder = new IrBuilder(declaration);
+        Ir.Function function = builder.function;
+
+        builder.current = function.newBlock();
+        builder.sealed.add(builder.current);
+        for (int i = 0; i < function.arity; i++) {
+            builder.write(i, builder.add(new Ir.Param(i)));
+        }
+        for (Stmt statement : declaration.body) {
+            builder.statement(statement);
+        }
+        // Falling off the end returns nil.
+        builder.terminate(new Ir.Return(builder.add(new Ir.Const(null))));
+
+        function.removeUnreachable();
+        removeTrivialPhis(function);
+        function.renumber();
+        return function;
+    }
+
+    private void statement(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Block block -> {
+                for (Stmt statement : block.statements) statement(statement);
+            }
+            case Stmt.Breakpoint breakpoint -> statement(breakpoint.statement);
+            // The interpreter doesn't run class declarations yet.
+            case Stmt.Class classStmt -> { }
+            case Stmt.Expression expression -> expression(expression.expression);
+            case Stmt.Function declaration ->
+                    write(declaration.slot, add(new Ir.MakeFunction(declaration)));
+            case Stmt.If ifStmt -> {
+                Ir.Instr condition = expression(ifStmt.condition);
+                Ir.Block thenBlock = function.newBlock();
+                Ir.Block after = function.newBlock();
+                Ir.Block elseBlock = ifStmt.elseBranch != null ? function.newBlock() : after;
+                branch(condition, thenBlock, elseBlock);
+
+                start(thenBlock);
+                statement(ifStmt.thenBranch);
+                jump(after);
+                if (ifStmt.elseBranch != null) {
+                    start(elseBlock);
+                    statement(ifStmt.elseBranch);
+                    jump(after);
+                }
+                start(after);
+            }
+            case Stmt.Print print -> add(new Ir.Print(expression(print.expression)));
+            case Stmt.Return returnStmt -> {
+                Ir.Instr value = returnStmt.value != null
+                        ? expression(returnStmt.value) : add(new Ir.Const(null));
+                terminate(new Ir.Return(value));
+                // Whatever follows can't run. It gets a block of its own that
+                // nothing jumps to, which is dropped at the end.
+                start(function.newBlock());
+            }
+            case Stmt.Yield yieldStmt -> add(new Ir.Yield(yieldStmt.value != null
+                    ? expression(yieldStmt.value) : add(new Ir.Const(null))));
+            case Stmt.Var var -> {
+                Ir.Instr value = var.initializer != null
+                        ? expression(var.initializer) : add(new Ir.Const(null));
+                write(var.slot, value);
+            }
+            case Stmt.While whileStmt -> {
+                Ir.Block header = function.newBlock();
+                jump(header);
+                // The header can't be sealed until the body jumps back.
+                current = header;
+                Ir.Instr condition = expression(whileStmt.condition);
+                Ir.Block body = function.newBlock();
+                Ir.Block exit = function.newBlock();
+                branch(condition, body, exit);
+
+                start(body);
+                statement(whileStmt.body);
+                jump(header);
+                seal(header);
+                start(exit);
+            }
+        }
+    }
+
+    private Ir.Instr expression(Expr expr) {
+        return switch (expr) {
+            case Expr.Assign assign -> {
+                Ir.Instr value = expression(assign.value);
+                if (assign.slot >= 0) {
+                    write(assign.slot, value);
+                } else {
+                    add(new Ir.GlobalSet(assign, value));
+                }
+                yield value;
+            }
+            case Expr.Binary binary -> {
+                Ir.Instr left = expression(binary.left);
+                Ir.Instr right = expression(binary.right);
+                yield add(new Ir.Binary(left, binary.operator, right, binary.numeric));
+            }
+            case Expr.Call call -> {
+                List<Ir.Instr> operands = new ArrayList<>();
+                operands.add(expression(call.callee));
+                for (Expr argument : call.arguments) operands.add(expression(argument));
+                yield add(new Ir.Call(call, operands));
+            }
+            case Expr.Grouping grouping -> expression(grouping.expression);
+            case Expr.Literal literal -> add(new Ir.Const(literal.value));
+            case Expr.Logical logical -> logical(logical);
+            case Expr.Unary unary -> add(new Ir.Unary(unary.operator,
+                    expression(unary.right), unary.numeric));
+            case Expr.Variable variable -> variable.slot >= 0
+                    ? read(variable.slot, current) : add(new Ir.GlobalGet(variable));
+            // The interpreter gives nil for these without evaluating anything.
+            case Expr.Get get -> add(new Ir.Const(null));
+            case Expr.Set set -> add(new Ir.Const(null));
+            case Expr.Super superExpr -> add(new Ir.Const(null));
+            case Expr.This thisExpr -> add(new Ir.Const(null));
+        };
+    }
+
+    // The value of "a or b" is a if it is truthy and b otherwise, so it
+    // becomes a branch on a that skips b, with a phi where the two meet.
+    private Ir.Instr logical(Expr.Logical logical) {
+        Ir.Instr left = expression(logical.left);
+        Ir.Block decided = current;
+        Ir.Block right = function.newBlock();
+        Ir.Block after = function.newBlock();
+        if (logical.operator.type == TokenType.OR) {
+            branch(left, after, right);
+        } else {
+            branch(left, right, after);
+        }
+
+        start(right);
+        Ir.Instr value = expression(logical.right);
+        jump(after);
+        start(after);
+
+        Ir.Phi phi = new Ir.Phi(-1);
+        for (Ir.Block predecessor : after.predecessors) {
+            phi.operands.add(predecessor == decided ? left : value);
+        }
+        return addPhi(after, phi);
+    }
+
+    private <T extends Ir.Instr> T add(T instr) {
+        return function.add(current, instr);
+    }
+
+    private Ir.Phi addPhi(Ir.Block block, Ir.Phi phi) {
+        phi.block = block;
+        phi.id = function.valueCount++;
+        block.phis.add(phi);
+        return phi;
+    }
+
+    private void terminate(Ir.Terminator terminator) {
+        terminator.block = current;
+        current.terminator = terminator;
+        for (Ir.Block successor : terminator.successors()) {
+            successor.predecessors.add(current);
+        }
+    }
+
+    private void jump(Ir.Block target) {
+        terminate(new Ir.Jump(target));
+    }
+
+    private void branch(Ir.Instr condition, Ir.Block thenBlock, Ir.Block elseBlock) {
+        terminate(new Ir.Branch(condition, thenBlock, elseBlock));
+    }
+
+    // Carries on in a block whose predecessors are all known.
+    private void start(Ir.Block block) {
+        seal(block);
+        current = block;
+    }
+
+    private void write(int slot, Ir.Instr value) {
+        definitions(current)[slot] = value;
+    }
+
+    private Ir.Instr read(int slot, Ir.Block block) {
+        Ir.Instr value = definitions(block)[slot];
+        if (value != null) return value;
+
+        if (!sealed.contains(block)) {
+            Ir.Phi phi = addPhi(block, new Ir.Phi(slot));
+            incomplete.computeIfAbsent(block, key -> new ArrayList<>()).add(phi);
+            value = phi;
+        } else if (block.predecessors.isEmpty()) {
+            // The entry, or code after a return.
+            value = undefined();
+        } else if (block.predecessors.size() == 1) {
+            value = read(slot, block.predecessors.get(0));
+        } else {
+            Ir.Phi phi = addPhi(block, new Ir.Phi(slot));
+            // Recorded before the operands are read, to end the search if a
+            // loop leads back here.
+            definitions(block)[slot] = phi;
+            fill(phi);
+            value = phi;
+        }
+        definitions(block)[slot] = value;
+        return value;
+    }
+
+    private void fill(Ir.Phi phi) {
+        for (Ir.Block predecessor : phi.block.predecessors) {
+            phi.operands.add(read(phi.slot, predecessor));
+        }
+    }
+
+    private void seal(Ir.Block block) {
+        if (!sealed.add(block)) return;
+        List<Ir.Phi> phis = incomplete.remove(block);
+        if (phis == null) return;
+        for (Ir.Phi phi : phis) fill(phi);
+    }
+
+    private Ir.Instr[] definitions(Ir.Block block) {
+        return definitions.computeIfAbsent(block, key -> new Ir.Instr[slots]);
+    }
+
+    // The nil in a slot that was never stored to, kept at the top of the
+    // entry so that it dominates every read.
+    private Ir.Const undefined() {
+        if (undefined == null) {
+            Ir.Block entry = function.entry();
+            undefined = new Ir.Const(null);
+            undefined.block = entry;
+            undefined.id = function.valueCount++;
+            entry.instrs.add(0, undefined);
+        }
+        return undefined;
+    }
+
+    // Replaces each phi whose operands, leaving out the phi itself, are all
+    // the same value with that value, until there are none left. Returns
+    // whether there were any.
+    static boolean removeTrivialPhis(Ir.Function function) {
+        boolean removed = false;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ir.Block block : function.blocks) {
+                for (int i = 0; i < block.phis.size(); i++) {
+                    Ir.Phi phi = block.phis.get(i);
+                    Ir.Instr same = null;
+                    boolean trivial = true;
+                    for (Ir.Instr operand : phi.operands) {
+                        if (operand == phi || operand == same) continue;
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = operand;
+                    }
+                    // A phi of nothing but itself is on a path that never
+                    // stores to the slot, which can only be unreachable.
+                    if (!trivial || same == null) continue;
+                    block.phis.remove(i--);
+                    function.replaceUses(phi, same);
+                    removed = changed = true;
+                }
+            }
+        }
+        return removed;
+    }
+}
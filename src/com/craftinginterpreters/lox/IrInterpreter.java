@@ -0,0 +1,265 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Runs functions from their optimized IR. Select it with -Dlox.mode=ir. The
+// top level of a script still runs on the tree, where nearly everything is
+// a global the IR couldn't do much with, and every function it declares is
+// lowered by IrBuilder, optimized by PassManager and then run here.
+//
+// Each call gets a Frame with a slot per value. Control moves from block to
+// block, and on entering one the phis are set from the operands for the
+// block it came from.
+//
+// A call from one of these functions to another doesn't recurse in Java.
+// The caller's frame is left where it is, waiting on the call, and the
+// callee's frame goes on top of it, all on the heap, so that recursion isn't
+// limited by the size of the Java stack. It is limited instead by how much
+// memory the frames may take up, which is lox.ir.stack bytes (64 MB unless
+// set), and going past that is a "Stack overflow." runtime error. The count
+// is kept on the interpreter, so that it goes on adding up when a native or
+// a function run on the tree calls back into the IR. These
+// calls go straight to the callee's IR, without the memo or the JIT, which
+// would need the Java stack. Calls to anything else, natives included, are
+// made as usual.
+//
+// With a budget, each call is charged a tick and an environment and each
+// jump back to a loop's condition a tick, much as the tree charges them. The
+// IR doesn't report to the tools, though, so with a tool on, functions run
+// on the tree as they would in tree mode.
+//
+// Generators are the exception. Their bodies run here in every mode, since a
+// frame on the heap can simply be left where it is at a yield and picked up
+// again later. The tools don't see inside them. See LoxGenerator.
+class IrInterpreter extends Interpreter {
+    // Lowering is done once per declaration, however many times it runs.
+    private static final Map<Stmt.Function, Ir.Function> lowered =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    static final long STACK_BYTES = Long.getLong("lox.ir.stack", 64L << 20);
+    // Roughly what a frame takes besides its values and arguments: the
+    // frame, its array and the argument list.
+    private static final long FRAME_BYTES = 96;
+
+    IrInterpreter(PrintStream out) {
+        super(out);
+    }
+
+    private IrInterpreter(Interpreter parent) {
+        super(parent);
+    }
+
+    @Override
+    Interpreter fork() {
+        return new IrInterpreter(this);
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        define(stmt.slot, stmt.name, function(stmt, this));
+        return null;
+    }
+
+    // The functions a generator declares are made here too, in any mode, but
+    // they only get IR in this one.
+    private static LoxFunction function(Stmt.Function declaration, Interpreter interpreter) {
+        if (!(interpreter instanceof IrInterpreter) || declaration.generator ||
+                interpreter.instrumented()) {
+            return new LoxFunction(declaration);
+        }
+        return new LoxFunction(declaration, lower(declaration));
+    }
+
+    static Ir.Function lower(Stmt.Function declaration) {
+        return lowered.computeIfAbsent(declaration, key -> {
+            Ir.Function function = IrBuilder.lower(key);
+            PassManager.optimize(function);
+            return function;
+        });
+    }
+
+    // A call in progress: the function's values, where it has got to and
+    // the call in the caller that is waiting for its result.
+    static final class Frame {
+        final Ir.Function function;
+        final Object[] values;
+        final List<Object> arguments;
+        final Frame caller;
+        // What the frame is charged against the stack budget.
+        final long bytes;
+        Ir.Block block = null;
+        int next = 0;
+        Ir.Call waiting = null;
+        // Whether the last resume() ended at a yield rather than a return.
+        boolean yielded = false;
+
+        private Frame(Ir.Function function, List<Object> arguments, Frame caller) {
+            this.function = function;
+            this.values = new Object[function.valueCount];
+            this.arguments = arguments;
+            this.caller = caller;
+            this.bytes = FRAME_BYTES + 8L * (function.valueCount + arguments.size());
+        }
+
+        // Moves to the start of a block, setting its phis from the operands
+        // for the block control came from, all at once since a phi can be
+        // another's operand.
+        void enter(Ir.Block target) {
+            List<Ir.Phi> phis = target.phis;
+            if (!phis.isEmpty()) {
+                int index = target.predecessors.indexOf(block);
+                if (phis.size() == 1) {
+                    Ir.Phi phi = phis.get(0);
+                    values[phi.id] = values[phi.operands.get(index).id];
+                } else {
+                    Object[] incoming = new Object[phis.size()];
+                    for (int i = 0; i < incoming.length; i++) {
+                        incoming[i] = values[phis.get(i).operands.get(index).id];
+                    }
+                    for (int i = 0; i < incoming.length; i++) {
+                        values[phis.get(i).id] = incoming[i];
+                    }
+                }
+            }
+            block = target;
+            next = 0;
+        }
+    }
+
+    static Object execute(Ir.Function function, Interpreter interpreter,
+                          List<Object> arguments) {
+        return resume(start(function, arguments), interpreter);
+    }
+
+    // A call of the function, ready for resume() to run from the top.
+    static Frame start(Ir.Function function, List<Object> arguments) {
+        Frame frame = new Frame(function, arguments, null);
+        frame.enter(function.entry());
+        return frame;
+    }
+
+    // Runs the call from where it got to until it returns, or until it
+    // yields if it is a generator's, and gives back the value.
+    static Object resume(Frame bottom, Interpreter interpreter) {
+        bottom.yielded = false;
+        long outside = interpreter.irBytes;
+        try {
+            interpreter.irBytes += bottom.bytes;
+            if (interpreter.irBytes > STACK_BYTES) {
+                throw new RuntimeError(bottom.function.name, "Stack overflow.");
+            }
+            return run(bottom, interpreter);
+        } finally {
+            interpreter.irBytes = outside;
+        }
+    }
+
+    private static Object run(Frame bottom, Interpreter interpreter) {
+        Budget budget = interpreter.budget;
+        Frame frame = bottom;
+        while (true) {
+            List<Ir.Instr> instrs = frame.block.instrs;
+            Object[] values = frame.values;
+            Frame callee = null;
+            while (frame.next < instrs.size()) {
+                Ir.Instr instr = instrs.get(frame.next++);
+                if (instr instanceof Ir.Call call) {
+                    List<Ir.Instr> operands = call.operands;
+                    Object target = values[operands.get(0).id];
+                    List<Object> callArguments = new ArrayList<>(operands.size() - 1);
+                    for (int i = 1; i < operands.size(); i++) {
+                        callArguments.add(values[operands.get(i).id]);
+                    }
+                    if (target instanceof LoxFunction lox && lox.ir() != null) {
+                        callable(call.call.paren, lox, callArguments);
+                        callee = new Frame(lox.ir(), callArguments, frame);
+                        if (budget != null) {
+                            budget.tick(callee.function.name);
+                            budget.allocateEnvironment();
+                        }
+                        interpreter.irBytes += callee.bytes;
+                        if (interpreter.irBytes > STACK_BYTES) {
+                            throw new RuntimeError(call.call.paren, "Stack overflow.");
+                        }
+                        frame.waiting = call;
+                        break;
+                    }
+                    values[call.id] = interpreter.call(call.call, target, callArguments);
+                } else if (instr instanceof Ir.Yield yieldInstr) {
+                    // The frames a generator calls have all returned by
+                    // the time it yields, so this is the bottom one.
+                    frame.yielded = true;
+                    return values[yieldInstr.operands.get(0).id];
+                } else {
+                    values[instr.id] = evaluate(instr, values, interpreter, frame.arguments);
+                }
+            }
+            if (callee != null) {
+                frame = callee;
+                frame.enter(frame.function.entry());
+                continue;
+            }
+
+            switch (frame.block.terminator) {
+                case Ir.Jump jump -> {
+                    // The blocks are in reverse postorder, so only the jump
+                    // back to a loop's condition goes to an earlier one.
+                    if (budget != null && jump.target.id <= frame.block.id) {
+                        budget.tick(frame.function.name);
+                    }
+                    frame.enter(jump.target);
+                }
+                case Ir.Branch branch -> frame.enter(
+                        isTruthy(values[branch.operands.get(0).id])
+                                ? branch.thenBlock : branch.elseBlock);
+                case Ir.Return returnInstr -> {
+                    Object value = values[returnInstr.operands.get(0).id];
+                    interpreter.irBytes -= frame.bytes;
+                    frame = frame.caller;
+                    if (frame == null) return value;
+                    frame.values[frame.waiting.id] = value;
+                    frame.waiting = null;
+                }
+            }
+        }
+    }
+
+    private static Object evaluate(Ir.Instr instr, Object[] values,
+                                   Interpreter interpreter, List<Object> arguments) {
+        List<Ir.Instr> operands = instr.operands;
+        return switch (instr) {
+            case Ir.Const constant -> constant.value;
+            case Ir.Param param -> arguments.get(param.index);
+            case Ir.Unary unary -> unary.numeric
+                    ? -(double) values[operands.get(0).id]
+                    : unary(unary.operator, values[operands.get(0).id]);
+            case Ir.Binary binary -> binary.numeric
+                    ? numeric(binary.operator,
+                            (double) values[operands.get(0).id], (double) values[operands.get(1).id])
+                    : binary(binary.operator,
+                            values[operands.get(0).id], values[operands.get(1).id]);
+            case Ir.GlobalGet get -> interpreter.global(get.variable);
+            case Ir.GlobalSet set -> {
+                Object value = values[operands.get(0).id];
+                interpreter.globals.assign(set.assign.global, set.assign.name, value);
+                yield value;
+            }
+            case Ir.Print print -> {
+                interpreter.out.println(stringify(values[operands.get(0).id]));
+                yield null;
+            }
+            case Ir.MakeFunction make -> function(make.declaration, interpreter);
+            // Calls and yields are handled by resume(), phis are set on
+            // entering the block and terminators don't get here.
+            case Ir.Call call -> throw new IllegalStateException();
+            case Ir.Yield yieldInstr -> throw new IllegalStateException();
+            case Ir.Phi phi -> throw new IllegalStateException();
+            case Ir.Terminator terminator -> throw new IllegalStateException();
+        };
+    }
+}
@@ -0,0 +1,324 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+// A Java constructor, static method or instance method that scripts can call,
+// created by the jnew(), jstatic() and jmethod() natives. An instance method
+// takes its receiver as the first argument. This gives scripts full access to
+// the host, the same as the Java code embedding the interpreter has.
+//
+// A name can stand for several overloads, so which one to call depends on the
+// arguments. Working that out, and building the argument conversions, is too
+// slow to do on every call. Instead each Expr.Call remembers the last linkage
+// it made: the argument classes it was made for and a MethodHandle that takes
+// Lox values and returns a Lox value. As long as a call site keeps seeing the
+// same argument classes it goes straight to the handle. A string passed as a
+// char is the one case where the class isn't enough, since only a string of
+// one character converts, so the linkage checks the length as well.
+class JavaCallable implements LoxCallable {
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final MethodHandle TO_DOUBLE;
+    private static final MethodHandle TO_LONG;
+    private static final MethodHandle TO_INT;
+    private static final MethodHandle TO_CHAR;
+    private static final MethodHandle FROM_OBJECT;
+
+    static {
+        try {
+            TO_DOUBLE = lookup.findStatic(JavaCallable.class, "toDouble",
+                    MethodType.methodType(double.class, Object.class));
+            TO_LONG = lookup.findStatic(JavaCallable.class, "toLong",
+                    MethodType.methodType(long.class, Object.class));
+            TO_INT = lookup.findStatic(JavaCallable.class, "toInt",
+                    MethodType.methodType(int.class, Object.class));
+            TO_CHAR = lookup.findStatic(JavaCallable.class, "toChar",
+                    MethodType.methodType(char.class, Object.class));
+            FROM_OBJECT = lookup.findStatic(JavaCallable.class, "fromObject",
+                    MethodType.methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    // What a call site caches. The fields are final so a linkage made by one
+    // task can safely be picked up by another.
+    private static class Linkage {
+        final JavaCallable target;
+        final Class<?>[] argumentClasses;
+        // Which arguments are strings converted to chars.
+        final boolean[] chars;
+        final MethodHandle handle;
+
+        Linkage(JavaCallable target, Class<?>[] argumentClasses, boolean[] chars,
+                MethodHandle handle) {
+            this.target = target;
+            this.argumentClasses = argumentClasses;
+            this.chars = chars;
+            this.handle = handle;
+        }
+
+        boolean matches(JavaCallable callee, Object[] arguments) {
+            if (callee != target) return false;
+            for (int i = 0; i < arguments.length; i++) {
+                Object argument = arguments[i];
+                Class<?> type = argument == null ? null : argument.getClass();
+                if (type != argumentClasses[i]) return false;
+                if (chars[i] && ((String) argument).length() != 1) return false;
+            }
+            return true;
+        }
+    }
+
+    private final String name;
+    private final List<Executable> overloads;
+
+    private JavaCallable(String name, List<Executable> overloads) {
+        this.name = name;
+        this.overloads = overloads;
+    }
+
+    static JavaCallable constructor(Class<?> type) {
+        List<Executable> overloads = new ArrayList<>();
+        for (Constructor<?> constructor : type.getConstructors()) {
+            overloads.add(constructor);
+        }
+        if (overloads.isEmpty()) {
+            throw new NativeError("Class '" + type.getName() + "' has no public constructor.");
+        }
+        return new JavaCallable(type.getName(), overloads);
+    }
+
+    static JavaCallable method(Class<?> type, String name, boolean isStatic) {
+        List<Executable> overloads = new ArrayList<>();
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) &&
+                    Modifier.isStatic(method.getModifiers()) == isStatic) {
+                overloads.add(method);
+            }
+        }
+        if (overloads.isEmpty()) {
+            throw new NativeError("Class '" + type.getName() + "' has no public " +
+                    (isStatic ? "static" : "instance") + " method '" + name + "'.");
+        }
+        return new JavaCallable(type.getName() + "." + name, overloads);
+    }
+
+    // When the overloads disagree on how many arguments they take, the count
+    // is checked at link time instead of by visitCallExpr().
+    @Override
+    public int arity() {
+        int arity = parameterCount(overloads.get(0));
+        for (Executable overload : overloads) {
+            if (parameterCount(overload) != arity) return -1;
+        }
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object[] values = arguments.toArray();
+        return invoke(link(values).handle, values);
+    }
+
+    // The fast path, used by visitCallExpr() so that linkages are cached.
+    Object call(Expr.Call site, List<Object> arguments) {
+        Object[] values = arguments.toArray();
+        if (site.inlineCache instanceof Linkage linkage &&
+                linkage.matches(this, values)) {
+            return invoke(linkage.handle, values);
+        }
+
+        Linkage linkage = link(values);
+        site.inlineCache = linkage;
+        return invoke(linkage.handle, values);
+    }
+
+    private Object invoke(MethodHandle handle, Object[] arguments) {
+        try {
+            return (Object) handle.invokeExact(arguments);
+        } catch (NativeError error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new NativeError("Java call to '" + name + "' threw " + error + ".");
+        }
+    }
+
+    // Picks the overload that needs the fewest conversions for these
+    // arguments and adapts it to take and return Lox values.
+    private Linkage link(Object[] arguments) {
+        Executable best = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (Executable overload : overloads) {
+            int cost = cost(overload, arguments);
+            if (cost < bestCost) {
+                best = overload;
+                bestCost = cost;
+            }
+        }
+        if (best == null) {
+            throw new NativeError("No overload of '" + name +
+                    "' accepts these " + arguments.length + " arguments.");
+        }
+
+        Class<?>[] types = parameterTypes(best);
+        Class<?>[] argumentClasses = new Class<?>[arguments.length];
+        boolean[] chars = new boolean[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            argumentClasses[i] = arguments[i] == null ? null : arguments[i].getClass();
+            chars[i] = types[i] == char.class;
+        }
+        return new Linkage(this, argumentClasses, chars, adapt(best));
+    }
+
+    private static int parameterCount(Executable executable) {
+        int count = executable.getParameterCount();
+        return Modifier.isStatic(executable.getModifiers()) ||
+                executable instanceof Constructor ? count : count + 1;
+    }
+
+    private static Class<?>[] parameterTypes(Executable executable) {
+        Class<?>[] types = executable.getParameterTypes();
+        if (Modifier.isStatic(executable.getModifiers()) ||
+                executable instanceof Constructor) {
+            return types;
+        }
+
+        Class<?>[] withReceiver = new Class<?>[types.length + 1];
+        withReceiver[0] = executable.getDeclaringClass();
+        System.arraycopy(types, 0, withReceiver, 1, types.length);
+        return withReceiver;
+    }
+
+    // Returns MAX_VALUE if the overload can't take the arguments at all.
+    private static int cost(Executable executable, Object[] arguments) {
+        if (executable.isVarArgs()) return Integer.MAX_VALUE;
+
+        Class<?>[] types = parameterTypes(executable);
+        if (types.length != arguments.length) return Integer.MAX_VALUE;
+
+        int cost = 0;
+        for (int i = 0; i < types.length; i++) {
+            int one = cost(types[i], arguments[i]);
+            if (one == Integer.MAX_VALUE) return Integer.MAX_VALUE;
+            cost += one;
+        }
+        return cost;
+    }
+
+    private static int cost(Class<?> type, Object argument) {
+        if (argument == null) {
+            return type.isPrimitive() ? Integer.MAX_VALUE : 1;
+        }
+        if (argument instanceof Double) {
+            if (type == double.class || type == Double.class) return 0;
+            if (type == long.class || type == int.class) return 1;
+            if (type == float.class || type == short.class || type == byte.class) {
+                return Integer.MAX_VALUE;
+            }
+        }
+        if (argument instanceof Boolean && type == boolean.class) return 0;
+        if (argument instanceof String string && type == char.class) {
+            return string.length() == 1 ? 2 : Integer.MAX_VALUE;
+        }
+        if (type.isInstance(argument)) {
+            return type == argument.getClass() ? 0 : 2;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    // Builds a handle of type (Object[])Object around the executable.
+    private static MethodHandle adapt(Executable executable) {
+        MethodHandle handle;
+        try {
+            handle = executable instanceof Constructor<?> constructor
+                    ? lookup.unreflectConstructor(constructor)
+                    : lookup.unreflect((Method) executable);
+        } catch (IllegalAccessException error) {
+            throw new NativeError("Cannot access '" + executable + "'.");
+        }
+
+        Class<?>[] types = handle.type().parameterArray();
+        for (int i = 0; i < types.length; i++) {
+            MethodHandle filter = argumentFilter(types[i]);
+            if (filter != null) {
+                handle = MethodHandles.filterArguments(handle, i, filter);
+            }
+        }
+
+        Class<?> returnType = handle.type().returnType();
+        if (returnType == void.class) {
+            handle = MethodHandles.filterReturnValue(handle,
+                    MethodHandles.constant(Object.class, null));
+        } else {
+            handle = MethodHandles.filterReturnValue(
+                    handle.asType(handle.type().changeReturnType(Object.class)),
+                    FROM_OBJECT);
+        }
+
+        handle = handle.asType(MethodType.genericMethodType(types.length));
+        return handle.asSpreader(Object[].class, types.length);
+    }
+
+    // Lox numbers reach integer parameters as doubles, so they get a filter
+    // that checks they hold an integer. Other types only need a cast, which
+    // asType() adds.
+    private static MethodHandle argumentFilter(Class<?> type) {
+        if (type == double.class) return TO_DOUBLE;
+        if (type == long.class) return TO_LONG;
+        if (type == int.class) return TO_INT;
+        if (type == char.class) return TO_CHAR;
+        return null;
+    }
+
+    private static double toDouble(Object value) {
+        return (Double) value;
+    }
+
+    private static long toLong(Object value) {
+        double number = (Double) value;
+        if (number != Math.floor(number) ||
+                number < Long.MIN_VALUE || number >= 0x1p63) {
+            throw new NativeError("Argument must be a 64-bit integer.");
+        }
+        return (long) number;
+    }
+
+    private static int toInt(Object value) {
+        double number = (Double) value;
+        if (number != (int) number) {
+            throw new NativeError("Argument must be a 32-bit integer.");
+        }
+        return (int) number;
+    }
+
+    private static char toChar(Object value) {
+        String string = (String) value;
+        if (string.length() != 1) {
+            throw new NativeError("Argument must be a single character.");
+        }
+        return string.charAt(0);
+    }
+
+    // Java numbers all become Lox numbers and chars become strings. Anything
+    // else is handed to the script as it is.
+    private static Object fromObject(Object value) {
+        if (value instanceof Number number && !(value instanceof Double)) {
+            return number.doubleValue();
+        }
+        if (value instanceof Character character) return character.toString();
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "<java fn " + name + ">";
+    }
+}
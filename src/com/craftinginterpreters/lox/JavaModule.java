@@ -0,0 +1,49 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.NativeFunction.string;
+
+// Calls into Java. See JavaCallable.
+//
+// Any public class can be reached, System.exit() and Runtime.exec() among
+// them, which no budget or batch isolation can contain. So the module is off
+// unless the host runs with -Dlox.java=true, and without that its globals
+// are simply undefined.
+public class JavaModule implements NativeModule {
+    static final boolean ENABLED = Boolean.getBoolean("lox.java");
+
+    @Override
+    public Set<String> globals() {
+        return Set.of("jnew", "jstatic", "jmethod");
+    }
+
+    @Override
+    public boolean enabled() {
+        return ENABLED;
+    }
+
+    @Override
+    public Object create(String name) {
+        return switch (name) {
+            case "jnew" -> new NativeFunction(1, (interpreter, arguments) ->
+                    JavaCallable.constructor(javaClass(arguments.get(0))));
+            case "jstatic" -> new NativeFunction(2, (interpreter, arguments) ->
+                    JavaCallable.method(javaClass(arguments.get(0)),
+                            string(arguments.get(1)), true));
+            case "jmethod" -> new NativeFunction(2, (interpreter, arguments) ->
+                    JavaCallable.method(javaClass(arguments.get(0)),
+                            string(arguments.get(1)), false));
+            default -> null;
+        };
+    }
+
+    private static Class<?> javaClass(Object object) {
+        String name = string(object);
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException error) {
+            throw new NativeError("Unknown Java class '" + name + "'.");
+        }
+    }
+}
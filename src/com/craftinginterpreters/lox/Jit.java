@@ -0,0 +1,441 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+// Compiles hot functions to JVM bytecode. LoxFunction counts its calls, and
+// once a function passes the threshold it is handed to a background thread
+// that translates it to Java source, compiles that with javac and loads the
+// result as a hidden class. Later calls go straight to the compiled code.
+//
+// Only numeric kernels are compiled: functions whose parameters, locals and
+// return values can all be typed as double or boolean, given that every
+// argument is a number. Such a body has no side effects. It can't print,
+// write globals or call anything but itself. That makes deoptimizing simple.
+// Whenever the compiled code can't carry on, for instance because it fell
+// off the end and must return nil, it throws Deopt and the call is run again
+// in the interpreter. A function that deoptimizes is never compiled again.
+//
+// Starting javac in the process takes seconds of CPU, more than most scripts
+// run for, so the JIT is off unless run with -Dlox.jit=true. Once on, javac
+// is started at once on a low-priority thread, and a function that gets hot
+// before it is up starts counting its calls again, so that only functions
+// still hot once javac can compile them are compiled. Run with
+// -Dlox.jit.threshold=n to change how many calls make a function hot.
+class Jit {
+    static final boolean ENABLED = Boolean.getBoolean("lox.jit");
+    static final int THRESHOLD = Integer.getInteger("lox.jit.threshold", 1000);
+
+    // Returned by Compiled.call() when the interpreter has to run the call.
+    static final Object NOT_COMPILED = new Object();
+
+    static class Deopt extends RuntimeException {
+        Deopt() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Thrown while translating a function the JIT can't handle.
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private enum Type { NUMBER, BOOLEAN }
+
+    private static final ExecutorService compiler = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lox-jit");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static final AtomicInteger classCount = new AtomicInteger();
+    // Set once javac has compiled its first class.
+    private static volatile boolean ready = false;
+
+    static {
+        if (ENABLED) {
+            compiler.execute(() -> {
+                javac("JitWarmUp", "package com.craftinginterpreters.lox;\n" +
+                        "final class JitWarmUp {}\n");
+                ready = true;
+            });
+        }
+    }
+
+    static boolean ready() {
+        return ready;
+    }
+
+    // The entry point of a compiled function. Arguments are checked against
+    // the assumption that they are all numbers before going in.
+    static class Compiled {
+        private final MethodHandle handle;
+        private final boolean recursive;
+        private final String lexeme;
+        // The index of the function's name in the globals it runs against,
+        // found on the first call from them.
+        private volatile Environment globals = null;
+        private int global;
+
+        Compiled(MethodHandle handle, boolean recursive, String name) {
+            this.handle = handle;
+            this.recursive = recursive;
+            this.lexeme = name;
+        }
+
+        private int global(Environment globals) {
+            if (this.globals != globals) {
+                global = globals.indexOf(lexeme);
+                this.globals = globals;
+            }
+            return global;
+        }
+
+        Object call(LoxFunction function, Interpreter interpreter,
+                    List<Object> arguments, Token name) {
+            // Compiled code doesn't count ticks, so it can't run on a budget.
+            if (interpreter.budget != null) return NOT_COMPILED;
+
+            Object[] values = arguments.toArray();
+            for (Object value : values) {
+                if (!(value instanceof Double)) return NOT_COMPILED;
+            }
+            // Recursive calls are compiled as direct calls, which is only right
+            // while the name still refers to this function. The body can't
+            // reassign globals, so checking on the way in is enough.
+            if (recursive && interpreter.globals.get(global(interpreter.globals), name) != function) {
+                return NOT_COMPILED;
+            }
+
+            try {
+                return (double) handle.invokeExact(values);
+            } catch (Deopt deopt) {
+                function.deoptimize();
+                return NOT_COMPILED;
+            } catch (RuntimeException | Error error) {
+                throw error;
+            } catch (Throwable error) {
+                throw new RuntimeException(error);
+            }
+        }
+    }
+
+    static void submit(LoxFunction function, Stmt.Function declaration) {
+        compiler.execute(() -> {
+            Compiled compiled = compile(declaration);
+            if (compiled != null) function.install(compiled);
+        });
+    }
+
+    // Returns null if the function can't be compiled.
+    static Compiled compile(Stmt.Function declaration) {
+        Translator translator = new Translator(declaration);
+        String className = "JitFunction" + classCount.incrementAndGet();
+        String source;
+        try {
+            source = translator.translate(className);
+        } catch (Unsupported unsupported) {
+            return null;
+        }
+
+        byte[] bytes = javac(className, source);
+        if (bytes == null) return null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(bytes, true);
+            MethodHandle handle = lookup.findStatic(lookup.lookupClass(), "run",
+                    MethodType.methodType(double.class,
+                            Collections.nCopies(declaration.params.size(), double.class)));
+            handle = handle.asType(handle.type().generic().changeReturnType(double.class))
+                    .asSpreader(Object[].class, declaration.params.size());
+            return new Compiled(handle, translator.recursive, declaration.name.lexeme);
+        } catch (ReflectiveOperationException error) {
+            return null;
+        }
+    }
+
+    private static byte[] javac(String className, String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) return null;
+
+        String path = "com/craftinginterpreters/lox/" + className;
+        JavaFileObject file = new SimpleJavaFileObject(
+                URI.create("string:///" + path + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StandardJavaFileManager standard = javac.getStandardFileManager(null, null, null);
+        ForwardingJavaFileManager<StandardJavaFileManager> manager =
+                new ForwardingJavaFileManager<>(standard) {
+                    @Override
+                    public JavaFileObject getJavaFileForOutput(
+                            Location location, String name,
+                            JavaFileObject.Kind kind, FileObject sibling) {
+                        return new SimpleJavaFileObject(
+                                URI.create("bytes:///" + path + ".class"), kind) {
+                            @Override
+                            public OutputStream openOutputStream() {
+                                return bytes;
+                            }
+                        };
+                    }
+                };
+
+        List<String> options = List.of("-classpath", System.getProperty("java.class.path"),
+                "-nowarn", "-g:none");
+        boolean success = javac.getTask(null, manager, diagnostic -> { },
+                options, null, List.of(file)).call();
+        return success ? bytes.toByteArray() : null;
+    }
+
+    // Turns a function body into the source of a class with one static method,
+    // run(), that takes every parameter as a double. Lox variables become Java
+    // locals with unique names, since Lox lets a block shadow a variable and
+    // Java doesn't.
+    private static class Translator {
+        private final Stmt.Function function;
+        private final StringBuilder code = new StringBuilder();
+        private final List<Map<String, String>> scopes = new ArrayList<>();
+        private final Map<String, Type> types = new HashMap<>();
+        private int localCount = 0;
+        boolean recursive = false;
+
+        Translator(Stmt.Function function) {
+            this.function = function;
+        }
+
+        String translate(String className) {
+            scopes.add(new HashMap<>());
+            List<String> params = new ArrayList<>();
+            for (Token param : function.params) {
+                params.add("double " + declare(param.lexeme, Type.NUMBER));
+            }
+
+            for (Stmt statement : function.body) {
+                statement(statement);
+            }
+
+            // T and F are there so that no condition is ever a constant. That
+            // keeps javac from finding unreachable code in bodies Lox accepts.
+            return "package com.craftinginterpreters.lox;\n" +
+                    "final class " + className + " {\n" +
+                    "  static boolean T = true, F = false;\n" +
+                    "  static double run(" + String.join(", ", params) + ") {\n" +
+                    "    double n_; boolean b_;\n" +
+                    "    if (T) {\n" + code + "    }\n" +
+                    // Falling off the end returns nil, which isn't a number.
+                    "    throw new Jit.Deopt();\n" +
+                    "  }\n" +
+                    "}\n";
+        }
+
+        private String declare(String name, Type type) {
+            String local = "v" + localCount++;
+            scopes.get(scopes.size() - 1).put(name, local);
+            types.put(local, type);
+            return local;
+        }
+
+        private String lookup(String name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                String local = scopes.get(i).get(name);
+                if (local != null) return local;
+            }
+            return null;
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt instanceof Stmt.Block block) {
+                code.append("{\n");
+                scopes.add(new HashMap<>());
+                for (Stmt statement : block.statements) {
+                    statement(statement);
+                }
+                scopes.remove(scopes.size() - 1);
+                code.append("}\n");
+            } else if (stmt instanceof Stmt.Expression expression) {
+                Type[] type = new Type[1];
+                String value = expression(expression.expression, type);
+                code.append(type[0] == Type.NUMBER ? "n_ = " : "b_ = ")
+                        .append(value).append(";\n");
+            } else if (stmt instanceof Stmt.If ifStmt) {
+                code.append("if (").append(condition(ifStmt.condition)).append(") ");
+                statement(ifStmt.thenBranch);
+                if (ifStmt.elseBranch != null) {
+                    code.append("else ");
+                    statement(ifStmt.elseBranch);
+                }
+            } else if (stmt instanceof Stmt.While whileStmt) {
+                code.append("while (").append(condition(whileStmt.condition)).append(") ");
+                statement(whileStmt.body);
+            } else if (stmt instanceof Stmt.Return returnStmt) {
+                if (returnStmt.value == null) throw new Unsupported();
+                code.append("if (T) return ")
+                        .append(expression(returnStmt.value, Type.NUMBER)).append(";\n");
+            } else if (stmt instanceof Stmt.Var var) {
+                if (var.initializer == null) throw new Unsupported();
+                Type[] type = new Type[1];
+                String value = expression(var.initializer, type);
+                // Declare after translating the initializer, which can't see
+                // the new variable.
+                String local = declare(var.name.lexeme, type[0]);
+                code.append(type[0] == Type.NUMBER ? "double " : "boolean ")
+                        .append(local).append(" = ").append(value).append(";\n");
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        private String condition(Expr expr) {
+            return expression(expr, Type.BOOLEAN);
+        }
+
+        private String expression(Expr expr, Type expected) {
+            Type[] type = new Type[1];
+            String code = expression(expr, type);
+            if (type[0] != expected) throw new Unsupported();
+            return code;
+        }
+
+        // Translates the expression and stores its type in type[0].
+        private String expression(Expr expr, Type[] type) {
+            if (expr instanceof Expr.Literal literal) {
+                if (literal.value instanceof Double number) {
+                    type[0] = Type.NUMBER;
+                    return "(" + number + "d)";
+                }
+                if (literal.value instanceof Boolean bool) {
+                    type[0] = Type.BOOLEAN;
+                    return bool ? "T" : "F";
+                }
+                throw new Unsupported();
+            }
+
+            if (expr instanceof Expr.Grouping grouping) {
+                return expression(grouping.expression, type);
+            }
+
+            if (expr instanceof Expr.Variable variable) {
+                String local = lookup(variable.name.lexeme);
+                if (local == null) throw new Unsupported();
+                type[0] = types.get(local);
+                return local;
+            }
+
+            if (expr instanceof Expr.Assign assign) {
+                String local = lookup(assign.name.lexeme);
+                if (local == null) throw new Unsupported();
+                type[0] = types.get(local);
+                return "(" + local + " = " + expression(assign.value, type[0]) + ")";
+            }
+
+            if (expr instanceof Expr.Unary unary) {
+                if (unary.operator.type == TokenType.MINUS) {
+                    type[0] = Type.NUMBER;
+                    return "(-" + expression(unary.right, Type.NUMBER) + ")";
+                }
+                type[0] = Type.BOOLEAN;
+                return "(!" + expression(unary.right, Type.BOOLEAN) + ")";
+            }
+
+            if (expr instanceof Expr.Logical logical) {
+                type[0] = Type.BOOLEAN;
+                String operator = logical.operator.type == TokenType.OR ? " || " : " && ";
+                return "(" + condition(logical.left) + operator + condition(logical.right) + ")";
+            }
+
+            if (expr instanceof Expr.Binary binary) {
+                return binary(binary, type);
+            }
+
+            if (expr instanceof Expr.Call call) {
+                // Only calls to the function itself, by its global name.
+                if (!(call.callee instanceof Expr.Variable callee) ||
+                        !callee.name.lexeme.equals(function.name.lexeme) ||
+                        lookup(callee.name.lexeme) != null ||
+                        call.arguments.size() != function.params.size()) {
+                    throw new Unsupported();
+                }
+                List<String> arguments = new ArrayList<>();
+                for (Expr argument : call.arguments) {
+                    arguments.add(expression(argument, Type.NUMBER));
+                }
+                recursive = true;
+                type[0] = Type.NUMBER;
+                return "run(" + String.join(", ", arguments) + ")";
+            }
+
+            throw new Unsupported();
+        }
+
+        private String binary(Expr.Binary binary, Type[] type) {
+            Type[] leftType = new Type[1];
+            Type[] rightType = new Type[1];
+            String left = expression(binary.left, leftType);
+            String right = expression(binary.right, rightType);
+
+            switch (binary.operator.type) {
+                case EQUAL_EQUAL, BANG_EQUAL -> {
+                    if (leftType[0] != rightType[0]) throw new Unsupported();
+                    type[0] = Type.BOOLEAN;
+                    String not = binary.operator.type == TokenType.BANG_EQUAL ? "!" : "";
+                    if (leftType[0] == Type.BOOLEAN) {
+                        return "(" + left + (not.isEmpty() ? " == " : " != ") + right + ")";
+                    }
+                    // Lox compares numbers with Double.equals(), which differs
+                    // from == for NaN and -0.
+                    return "(" + not + "(Double.doubleToLongBits(" + left +
+                            ") == Double.doubleToLongBits(" + right + ")))";
+                }
+                default -> {
+                    if (leftType[0] != Type.NUMBER || rightType[0] != Type.NUMBER) {
+                        throw new Unsupported();
+                    }
+                }
+            }
+
+            String operator = switch (binary.operator.type) {
+                case PLUS -> "+";
+                case MINUS -> "-";
+                case STAR -> "*";
+                case SLASH -> "/";
+                case GREATER -> ">";
+                case GREATER_EQUAL -> ">=";
+                case LESS -> "<";
+                case LESS_EQUAL -> "<=";
+                default -> throw new Unsupported();
+            };
+            type[0] = switch (binary.operator.type) {
+                case PLUS, MINUS, STAR, SLASH -> Type.NUMBER;
+                default -> Type.BOOLEAN;
+            };
+            return "(" + left + " " + operator + " " + right + ")";
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Which values of an IR function are live, still to be used, on entry to
+// and exit from each block. Found by the usual backward data-flow analysis,
+// iterated until nothing changes:
+//
+//   liveOut(b) = the union over successors s of liveIn(s), plus the
+//                operands the phis of s take from b
+//   liveIn(b)  = the values used in b before being defined there, plus
+//                liveOut(b) minus the values defined in b
+//
+// A phi's operand counts as used at the end of the predecessor it comes
+// from rather than in the phi's own block, since that's where it is read.
+final class Liveness {
+    private final Map<Ir.Block, Set<Ir.Instr>> liveIn = new HashMap<>();
+    private final Map<Ir.Block, Set<Ir.Instr>> liveOut = new HashMap<>();
+
+    private Liveness(Ir.Function function) {
+        Map<Ir.Block, Set<Ir.Instr>> uses = new HashMap<>();
+        Map<Ir.Block, Set<Ir.Instr>> defs = new HashMap<>();
+        for (Ir.Block block : function.blocks) {
+            Set<Ir.Instr> used = new HashSet<>();
+            Set<Ir.Instr> defined = new HashSet<>(block.phis);
+            List<Ir.Instr> instrs = new ArrayList<>(block.instrs);
+            if (block.terminator != null) instrs.add(block.terminator);
+            for (Ir.Instr instr : instrs) {
+                for (Ir.Instr operand : instr.operands) {
+                    if (!defined.contains(operand)) used.add(operand);
+                }
+                defined.add(instr);
+            }
+            uses.put(block, used);
+            defs.put(block, defined);
+            liveIn.put(block, new HashSet<>());
+            liveOut.put(block, new HashSet<>());
+        }
+
+        // Going backwards through reverse postorder visits most successors
+        // before their predecessors, so it settles quickly.
+        List<Ir.Block> order = function.reversePostorder();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = order.size() - 1; i >= 0; i--) {
+                Ir.Block block = order.get(i);
+                Set<Ir.Instr> out = new HashSet<>();
+                for (Ir.Block successor : block.successors()) {
+                    Set<Ir.Instr> in = liveIn.get(successor);
+                    // A block's own phis are defined in it, so they are
+                    // never live into it.
+                    if (in != null) out.addAll(in);
+                    int index = successor.predecessors.indexOf(block);
+                    for (Ir.Phi phi : successor.phis) out.add(phi.operands.get(index));
+                }
+
+                Set<Ir.Instr> in = new HashSet<>(out);
+                in.removeAll(defs.get(block));
+                in.addAll(uses.get(block));
+
+                if (!out.equals(liveOut.get(block)) || !in.equals(liveIn.get(block))) {
+                    liveOut.put(block, out);
+                    liveIn.put(block, in);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    static Liveness of(Ir.Function function) {
+        return new Liveness(function);
+    }
+
+    Set<Ir.Instr> liveIn(Ir.Block block) {
+        return liveIn.getOrDefault(block, Set.of());
+    }
+
+    Set<Ir.Instr> liveOut(Ir.Block block) {
+        return liveOut.getOrDefault(block, Set.of());
+    }
+}
@@ -0,0 +1,149 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Gives every local variable a slot in its function's frame before the code
+// runs, so the interpreter keeps locals in a plain array instead of a chain
+// of hash maps. A block's variables take the slots after those of the
+// blocks around it and hand them back when it ends, so a frame needs only as
+// many slots as the deepest nesting of declarations. Parameters come first.
+//
+// Functions here see only their own locals and the globals, never the locals
+// of a function or block around them, so no variable outlives its frame and
+// none needs to be boxed. A name that isn't a local of the current function
+// is left with slot -1 and gets the index of the global of that name
+// instead. The global is only looked at when the code runs, so globals stay
+// late bound. Code at the top level gets a frame too, for the variables of
+// its blocks.
+class Locals {
+    // The globals the code will run against, which hand out the indices.
+    private final Environment globals;
+    private final List<Map<String, Integer>> scopes = new ArrayList<>();
+    private int next = 0;
+    private int size = 0;
+
+    private Locals(Environment globals) {
+        this.globals = globals;
+    }
+
+    // Assigns slots in a script and returns the size of its frame.
+    static int resolve(List<Stmt> statements, Environment globals) {
+        Locals locals = new Locals(globals);
+        locals.resolveAll(statements);
+        // The types of the locals can be worked out now that they have slots.
+        Types.infer(statements);
+        return locals.size;
+    }
+
+    private void resolveAll(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    private void resolve(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Block block -> {
+                int saved = next;
+                scopes.add(new HashMap<>());
+                resolveAll(block.statements);
+                scopes.remove(scopes.size() - 1);
+                next = saved;
+            }
+            case Stmt.Class classStmt -> { }
+            case Stmt.Expression expression -> resolve(expression.expression);
+            case Stmt.Function function -> {
+                function.slot = declare(function.name);
+                Locals body = new Locals(globals);
+                body.scopes.add(new HashMap<>());
+                for (Token param : function.params) {
+                    body.declare(param);
+                }
+                body.resolveAll(function.body);
+                function.frameSize = body.size;
+            }
+            case Stmt.If ifStmt -> {
+                resolve(ifStmt.condition);
+                resolve(ifStmt.thenBranch);
+                if (ifStmt.elseBranch != null) resolve(ifStmt.elseBranch);
+            }
+            case Stmt.Print print -> resolve(print.expression);
+            case Stmt.Return returnStmt -> {
+                if (returnStmt.value != null) resolve(returnStmt.value);
+            }
+            case Stmt.Var var -> {
+                // The initializer still sees any outer variable of the same name.
+                if (var.initializer != null) resolve(var.initializer);
+                var.slot = declare(var.name);
+            }
+            case Stmt.While whileStmt -> {
+                resolve(whileStmt.condition);
+                resolve(whileStmt.body);
+            }
+            case Stmt.Breakpoint breakpoint -> resolve(breakpoint.statement);
+            case Stmt.Yield yieldStmt -> {
+                if (yieldStmt.value != null) resolve(yieldStmt.value);
+            }
+        }
+    }
+
+    private void resolve(Expr expr) {
+        switch (expr) {
+            case Expr.Assign assign -> {
+                resolve(assign.value);
+                assign.slot = lookUp(assign.name);
+                if (assign.slot < 0) assign.global = globals.indexOf(assign.name.lexeme);
+            }
+            case Expr.Binary binary -> {
+                resolve(binary.left);
+                resolve(binary.right);
+            }
+            case Expr.Call call -> {
+                resolve(call.callee);
+                for (Expr argument : call.arguments) {
+                    resolve(argument);
+                }
+            }
+            case Expr.Grouping grouping -> resolve(grouping.expression);
+            case Expr.Logical logical -> {
+                resolve(logical.left);
+                resolve(logical.right);
+            }
+            case Expr.Unary unary -> resolve(unary.right);
+            case Expr.Variable variable -> {
+                variable.slot = lookUp(variable.name);
+                if (variable.slot < 0) {
+                    variable.global = globals.indexOf(variable.name.lexeme);
+                }
+            }
+            // The interpreter doesn't evaluate the class expressions.
+            case Expr.Get get -> { }
+            case Expr.Literal literal -> { }
+            case Expr.Set set -> { }
+            case Expr.Super superExpr -> { }
+            case Expr.This thisExpr -> { }
+        }
+    }
+
+    // Returns the new variable's slot, or -1 if it is a global. Declaring a
+    // name again in the same scope gives it a fresh slot, which later uses
+    // then refer to.
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
+        int slot = next++;
+        size = Math.max(size, next);
+        scopes.get(scopes.size() - 1).put(name.lexeme, slot);
+        return slot;
+    }
+
+    private int lookUp(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.lexeme);
+            if (slot != null) return slot;
+        }
+        return -1;
+    }
+}
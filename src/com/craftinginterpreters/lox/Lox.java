@@ -3,18 +3,49 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // How scripts are executed: "tree" walks the syntax tree with the visitor,
+    // "switch" walks it with a switch over the node classes, "closure"
+    // compiles it to closures first, "flat" packs it into arrays first and
+    // "ir" runs functions from an optimized control-flow graph.
+    static final String mode = System.getProperty("lox.mode", "tree");
+    private static final Interpreter interpreter = newInterpreter(System.out);
+
+    // Error flags live per thread rather than in plain statics so that scripts
+    // running side by side in batch mode don't see each other's errors. Tasks
+    // spawned by a script inherit its flags.
+    static class Reporter {
+        final PrintStream err;
+        // Volatile since the virtual threads of tasks set them too.
+        volatile boolean hadError = false;
+        volatile boolean hadRuntimeError = false;
+        // When set, syntax errors are collected here instead of printed.
+        List<Diagnostic> diagnostics = null;
+
+        Reporter(PrintStream err) {
+            this.err = err;
+        }
+    }
+
+    private static final ThreadLocal<Reporter> reporter =
+            new InheritableThreadLocal<>() {
+                @Override
+                protected Reporter initialValue() {
+                    return new Reporter(System.err);
+                }
+            };
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jox [script]");
+        if (args.length == 2 && args[0].equals("--batch")) {
+            System.exit(BatchRunner.run(Paths.get(args[1])));
+        } else if (args.length > 1) {
+            System.out.println("Usage: jox [script] | jox --batch [dir|manifest]");
             System.exit(64);
         } else if (args.length == 1) {
             runFile(args[0]);
@@ -25,11 +56,24 @@ public class Lox {
 
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (Debugger.PORT != null && !mode.equals("tree") && !mode.equals("switch")) {
+            System.err.println("The debugger needs -Dlox.mode=tree or switch.");
+            System.exit(64);
+        }
+        if (mode.equals("ir") && PassManager.unknownPass() != null) {
+            System.err.println("Unknown IR pass '" + PassManager.unknownPass() + "'.");
+            System.exit(64);
+        }
+        interpreter.debugger = Debugger.fromProperties();
+        if (interpreter.debugger != null) interpreter.debugger.awaitStart();
+        int exitCode = run(new String(bytes, Charset.defaultCharset()), interpreter);
+        if (interpreter.debugger != null) interpreter.debugger.exited();
+        if (interpreter.profiler != null) interpreter.profiler.report(System.err);
+        if (interpreter.coverage != null) interpreter.coverage.report(Paths.get(path));
+        Memo.report(System.err);
 
         // Indicate an error in the exit code
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        if (exitCode != 0) System.exit(exitCode);
     }
 
     private static void runPrompt() throws IOException {
@@ -40,46 +84,87 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
-            hadError = false;
+            run(line, interpreter);
+            reporter.get().hadError = false;
         }
     }
 
-    private static void run(String source) {
+    // Returns the exit code for the script: 65 for a compile error, 70 for a
+    // runtime error and 0 otherwise.
+    static int run(String source, Interpreter interpreter) {
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
 
-        Parser parser = new Parser(tokens);
+        Parser parser = new Parser(tokens, interpreter.coverage);
         List<Stmt> statements = parser.parse();
 
-        if (hadError) return;
+        if (reporter.get().hadError) return 65;
+        if (interpreter.debugger != null) interpreter.debugger.load(statements);
 
-        interpreter.interpret(statements);
+        if (mode.equals("closure")) {
+            interpreter.interpretCompiled(statements);
+        } else if (interpreter instanceof FlatInterpreter flat) {
+            flat.interpretFlat(FlatAst.encode(statements, interpreter.globals));
+        } else {
+            interpreter.interpret(statements);
+        }
         //System.out.println(new AstPrinter().print(expression));
 
+        if (reporter.get().hadRuntimeError) return 70;
+        return 0;
+    }
+
+    // Runs the source with a fresh error state that reports to the given
+    // stream. The thread's previous state is restored afterwards.
+    static int runIsolated(String source, Interpreter interpreter, PrintStream err) {
+        Reporter previous = reporter.get();
+        reporter.set(new Reporter(err));
+        try {
+            return run(source, interpreter);
+        } finally {
+            reporter.set(previous);
+        }
+    }
+
+    static Interpreter newInterpreter(PrintStream out) {
+        Interpreter interpreter = switch (mode) {
+            case "switch" -> new SwitchInterpreter(out);
+            case "flat" -> new FlatInterpreter(out);
+            case "ir" -> new IrInterpreter(out);
+            default -> new Interpreter(out);
+        };
+        interpreter.budget = Budget.fromProperties();
+        interpreter.profiler = AllocationProfiler.fromProperties();
+        interpreter.coverage = Coverage.fromProperties();
+        return interpreter;
+    }
+
+    static Reporter reporter() {
+        return reporter.get();
     }
 
     static void error(int line, String message) {
-        report(line, "", message);
+        report(new Diagnostic(null, line, message));
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+    private static void report(Diagnostic diagnostic) {
+        Reporter current = reporter.get();
+        if (current.diagnostics != null) {
+            current.diagnostics.add(diagnostic);
+        } else {
+            current.err.println(diagnostic);
+        }
+        current.hadError = true;
     }
 
     static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else  {
-            report(token.line, " at '" + token.lexeme + "'", message);
-        }
+        report(new Diagnostic(token, token.line, message));
     }
 
     static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[Line " + error.token.line + "]");
-    hadRuntimeError = true;
+    Reporter current = reporter.get();
+    current.err.println(error.getMessage() + "\n[Line " + error.token.line + "]");
+    current.hadRuntimeError = true;
     }
 
 
@@ -0,0 +1,284 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A fixed-length array of numbers kept outside the Java heap, either in
+// direct memory or mapped from a file. The GC never scans or copies the
+// contents, so a buffer of any size costs the heap only this object and its
+// chunk headers. Direct memory is capped by -XX:MaxDirectMemorySize, which
+// is the heap size unless set. A buffer that doesn't fit in what is left of
+// it is mapped from a temporary file instead, which is deleted at once, so
+// that only the disk limits its size.
+//
+// A single ByteBuffer can't address more than 2GB, so the memory is split
+// into 1GB chunks. Every element size divides the chunk size, so an element
+// never straddles two chunks.
+class LoxBuffer {
+    enum Type {
+        F64(3), I64(3), I32(2);
+
+        // log2 of the element size in bytes.
+        final int shift;
+
+        Type(int shift) {
+            this.shift = shift;
+        }
+    }
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+    // As many chunks as an array can hold.
+    private static final long MAX_BYTES = (long) Integer.MAX_VALUE << CHUNK_SHIFT;
+
+    final Type type;
+    private final long length;
+    private final ByteBuffer[] chunks;
+
+    private LoxBuffer(Type type, long length, ByteBuffer[] chunks) {
+        this.type = type;
+        this.length = length;
+        this.chunks = chunks;
+    }
+
+    static LoxBuffer allocate(Type type, long length) {
+        long bytes = checkLength(type, length);
+        ByteBuffer[] chunks;
+        try {
+            chunks = new ByteBuffer[chunkCount(bytes)];
+            for (int i = 0; i < chunks.length; i++) {
+                long size = Math.min(CHUNK_SIZE, bytes - ((long) i << CHUNK_SHIFT));
+                chunks[i] = ByteBuffer.allocateDirect((int) size)
+                        .order(ByteOrder.nativeOrder());
+            }
+        } catch (OutOfMemoryError error) {
+            // Out of direct memory, or too many chunks for the heap to
+            // track. The chunks already allocated are freed once the GC
+            // finds them unreachable.
+            return temporary(type, length);
+        }
+        return new LoxBuffer(type, length, chunks);
+    }
+
+    private static LoxBuffer temporary(Type type, long length) {
+        Path file = null;
+        try {
+            file = Files.createTempFile("lox-buffer", ".bin");
+            return map(file, type, length);
+        } catch (IOException error) {
+            throw new NativeError("Could not allocate buffer: " + error.getMessage());
+        } catch (OutOfMemoryError error) {
+            throw new NativeError("Could not allocate buffer: out of memory.");
+        } finally {
+            // The mapping outlives the file's name. Where the OS won't
+            // delete a mapped file, it goes when the JVM exits.
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException error) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+
+    // Returns the size in bytes of a buffer of that many elements, if it
+    // can have that many.
+    private static long checkLength(Type type, long length) {
+        if (length < 0 || length > MAX_BYTES >> type.shift) {
+            throw new NativeError("Buffer length out of range.");
+        }
+        return length << type.shift;
+    }
+
+    // Maps the file read-write. If length is negative the whole file is
+    // mapped, otherwise the file is grown to hold that many elements first.
+    // Writes go straight to the page cache, so the OS rather than the JVM
+    // decides how much of the file is resident.
+    static LoxBuffer map(Path path, Type type, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            if (length < 0) length = channel.size() >> type.shift;
+
+            long bytes = checkLength(type, length);
+            ByteBuffer[] chunks = new ByteBuffer[chunkCount(bytes)];
+            for (int i = 0; i < chunks.length; i++) {
+                long offset = (long) i << CHUNK_SHIFT;
+                long size = Math.min(CHUNK_SIZE, bytes - offset);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, size)
+                        .order(ByteOrder.nativeOrder());
+            }
+            // The mappings stay valid after the channel is closed.
+            return new LoxBuffer(type, length, chunks);
+        }
+    }
+
+    private static int chunkCount(long bytes) {
+        return (int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT);
+    }
+
+    long length() {
+        return length;
+    }
+
+    double get(long index) {
+        checkIndex(index);
+        return read(index << type.shift);
+    }
+
+    void set(long index, double value) {
+        checkIndex(index);
+        checkValue(value);
+        write(index << type.shift, value);
+    }
+
+    void fill(double value) {
+        checkValue(value);
+        long bytes = length << type.shift;
+        for (long offset = 0; offset < bytes; offset += 1L << type.shift) {
+            write(offset, value);
+        }
+    }
+
+    double sum() {
+        double sum = 0;
+        long bytes = length << type.shift;
+        for (long offset = 0; offset < bytes; offset += 1L << type.shift) {
+            sum += read(offset);
+        }
+        return sum;
+    }
+
+    double min() {
+        if (length == 0) throw new NativeError("Buffer is empty.");
+        double min = Double.POSITIVE_INFINITY;
+        long bytes = length << type.shift;
+        for (long offset = 0; offset < bytes; offset += 1L << type.shift) {
+            min = Math.min(min, read(offset));
+        }
+        return min;
+    }
+
+    double max() {
+        if (length == 0) throw new NativeError("Buffer is empty.");
+        double max = Double.NEGATIVE_INFINITY;
+        long bytes = length << type.shift;
+        for (long offset = 0; offset < bytes; offset += 1L << type.shift) {
+            max = Math.max(max, read(offset));
+        }
+        return max;
+    }
+
+    // Copies count elements from source, starting at from, into this buffer
+    // starting at to. Overlapping ranges of the same buffer are handled like
+    // memmove(). Buffers of the same type are copied as raw bytes a chunk at
+    // a time; otherwise each element is converted.
+    void copy(long to, LoxBuffer source, long from, long count) {
+        // Written so that nothing can overflow.
+        if (count < 0 || to < 0 || from < 0 || to > length || from > source.length ||
+                count > length - to || count > source.length - from) {
+            throw new NativeError("Buffer range out of bounds.");
+        }
+        boolean backwards = source == this && to > from;
+
+        if (source.type != type) {
+            for (long i = 0; i < count; i++) {
+                long element = backwards ? count - 1 - i : i;
+                double value = source.read((from + element) << source.type.shift);
+                checkValue(value);
+                write((to + element) << type.shift, value);
+            }
+            return;
+        }
+
+        long dst = to << type.shift;
+        long src = from << type.shift;
+        long bytes = count << type.shift;
+        if (!backwards) {
+            while (bytes > 0) {
+                int piece = (int) Math.min(bytes,
+                        Math.min(CHUNK_SIZE - (dst & CHUNK_MASK),
+                                CHUNK_SIZE - (src & CHUNK_MASK)));
+                chunk(dst).put((int) (dst & CHUNK_MASK),
+                        source.chunk(src), (int) (src & CHUNK_MASK), piece);
+                dst += piece;
+                src += piece;
+                bytes -= piece;
+            }
+        } else {
+            long dstEnd = dst + bytes;
+            long srcEnd = src + bytes;
+            while (bytes > 0) {
+                // Bytes available in the chunks just before each end.
+                int piece = (int) Math.min(bytes,
+                        Math.min(((dstEnd - 1) & CHUNK_MASK) + 1,
+                                ((srcEnd - 1) & CHUNK_MASK) + 1));
+                dstEnd -= piece;
+                srcEnd -= piece;
+                chunk(dstEnd).put((int) (dstEnd & CHUNK_MASK),
+                        source.chunk(srcEnd), (int) (srcEnd & CHUNK_MASK), piece);
+                bytes -= piece;
+            }
+        }
+    }
+
+    private ByteBuffer chunk(long offset) {
+        return chunks[(int) (offset >>> CHUNK_SHIFT)];
+    }
+
+    private double read(long offset) {
+        ByteBuffer chunk = chunk(offset);
+        int position = (int) (offset & CHUNK_MASK);
+        return switch (type) {
+            case F64 -> chunk.getDouble(position);
+            case I64 -> chunk.getLong(position);
+            case I32 -> chunk.getInt(position);
+        };
+    }
+
+    private void write(long offset, double value) {
+        ByteBuffer chunk = chunk(offset);
+        int position = (int) (offset & CHUNK_MASK);
+        switch (type) {
+            case F64 -> chunk.putDouble(position, value);
+            case I64 -> chunk.putLong(position, (long) value);
+            case I32 -> chunk.putInt(position, (int) value);
+        }
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= length) {
+            throw new NativeError("Buffer index out of range.");
+        }
+    }
+
+    // Integer buffers only take numbers they can hold exactly.
+    private void checkValue(double value) {
+        switch (type) {
+            case F64 -> { }
+            case I64 -> {
+                if (value != Math.floor(value) ||
+                        value < Long.MIN_VALUE || value >= 0x1p63) {
+                    throw new NativeError("Value must be a 64-bit integer.");
+                }
+            }
+            case I32 -> {
+                if (value != (int) value) {
+                    throw new NativeError("Value must be a 32-bit integer.");
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<buffer " + type.name().toLowerCase() + "[" + length + "]>";
+    }
+}
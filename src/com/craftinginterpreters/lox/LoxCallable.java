@@ -9,7 +9,7 @@ import java.util.List;
 //user-defined functions, naturally, but also class objects since classes are “called”
 //to construct new instances.
 
-interface LoxCallable {
+public interface LoxCallable {
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);
 }
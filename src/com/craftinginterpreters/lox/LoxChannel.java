@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// A bounded queue that tasks use to hand values to each other. send() blocks
+// while the channel is full and receive() blocks while it is empty. Blocking
+// on a virtual thread only parks the task, not a platform thread.
+class LoxChannel {
+    // The queue can't hold null, so nil travels as this instead.
+    private static final Object NIL = new Object();
+
+    private final BlockingQueue<Object> queue;
+
+    LoxChannel(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    void send(Object value) {
+        try {
+            queue.put(value == null ? NIL : value);
+        } catch (InterruptedException error) {
+            throw new NativeError("Interrupted while sending.");
+        }
+    }
+
+    Object receive() {
+        try {
+            Object value = queue.take();
+            return value == NIL ? null : value;
+        } catch (InterruptedException error) {
+            throw new NativeError("Interrupted while receiving.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
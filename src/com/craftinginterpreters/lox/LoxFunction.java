@@ -4,9 +4,54 @@ import java.util.List;
 
 public class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
+    // The body as closures when running in closure mode, otherwise null.
+    private final ClosureCompiler.StmtCode[] body;
+    // The body lowered and optimized when running in IR mode, otherwise
+    // null.
+    private final Ir.Function ir;
+
+    // Call counting for the JIT. The count doesn't need to be exact, so it
+    // isn't synchronized between tasks.
+    private int calls = 0;
+    private volatile Jit.Compiled compiled = null;
+    private volatile boolean deoptimized = false;
+
+    // The result cache, IMPURE, or null until the first call decides. See
+    // Memo.
+    private volatile Memo memo = null;
 
     LoxFunction(Stmt.Function declaration) {
+        this(declaration, (ClosureCompiler.StmtCode[]) null);
+    }
+
+    LoxFunction(Stmt.Function declaration, ClosureCompiler.StmtCode[] body) {
         this.declaration = declaration;
+        this.body = body;
+        this.ir = null;
+    }
+
+    LoxFunction(Stmt.Function declaration, Ir.Function ir) {
+        this.declaration = declaration;
+        this.body = null;
+        this.ir = ir;
+    }
+
+    void install(Jit.Compiled compiled) {
+        if (!deoptimized) this.compiled = compiled;
+    }
+
+    // Drops the compiled code for good, so the function stays interpreted.
+    void deoptimize() {
+        deoptimized = true;
+        compiled = null;
+    }
+
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
+    Ir.Function ir() {
+        return ir;
     }
 
     @Override
@@ -22,10 +67,93 @@ public class LoxFunction implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Environment environment = new Environment(interpreter.globals);
+        // Calling a generator only gets it ready to run. See LoxGenerator.
+        if (declaration.generator) return new LoxGenerator(this, interpreter, arguments);
+
+        // The debugger and the other tools want to see every call run.
+        if (Memo.ENABLED && !interpreter.instrumented()) {
+            Memo memo = this.memo;
+            if (memo == null) memo = this.memo = Memo.analyze(this, interpreter);
+            if (memo != Memo.IMPURE) {
+                if (memo.valid(interpreter)) return memo.call(interpreter, arguments);
+                // A global it relied on has changed. Stop caching for good.
+                this.memo = Memo.IMPURE;
+            }
+        }
+        return invoke(interpreter, arguments);
+    }
+
+    // Runs the call, without the cache.
+    Object invoke(Interpreter interpreter, List<Object> arguments) {
+        return invoke(interpreter, arguments, arguments.size());
+    }
+
+    // Whether a call can leave its arguments on the interpreter's stack for
+    // invokeOnStack() rather than build a list of them. Generators, the
+    // result cache, compiled code and the IR all take a list.
+    boolean takesStack(Interpreter interpreter) {
+        return !declaration.generator && ir == null && compiled == null &&
+                (!Memo.ENABLED || interpreter.instrumented() || memo == Memo.IMPURE);
+    }
+
+    // Runs the call with the count arguments that Interpreter.pushArgument()
+    // left on top of the stack.
+    Object invokeOnStack(Interpreter interpreter, int count) {
+        return invoke(interpreter, null, count);
+    }
+
+    // Runs the call with its arguments in the list or, if that is null, in
+    // the count slots on top of the stack.
+    private Object invoke(Interpreter interpreter, List<Object> arguments, int count) {
+        Jit.Compiled code = compiled;
+        if (code != null) {
+            // The JIT may have installed code while the arguments ran.
+            if (arguments == null) arguments = interpreter.popArguments(count);
+            Object result = code.call(this, interpreter, arguments, declaration.name);
+            if (result != Jit.NOT_COMPILED) return result;
+        } else if (Jit.ENABLED && ++calls == Jit.THRESHOLD &&
+                // Compiled code would hide what it does from the tools.
+                !interpreter.instrumented() &&
+                // A function from a FlatAst has a declaration without a
+                // body, which leaves the JIT nothing to translate.
+                !declaration.body.isEmpty()) {
+            // Until javac is up, the function has to get hot all over again.
+            if (Jit.ready()) {
+                Jit.submit(this, declaration);
+            } else {
+                calls = 0;
+            }
+        }
+
+        Budget budget = interpreter.budget;
+        if (budget != null) {
+            budget.tick(declaration.name);
+            budget.allocateEnvironment();
+        }
+
+        // IrInterpreter only gives a function IR when there is no tool to
+        // report to. takesStack() keeps those calls on a list.
+        if (ir != null) return IrInterpreter.execute(ir, interpreter, arguments);
+
+        if (interpreter.coverage != null) interpreter.coverage.entered(declaration.id);
+
+        AllocationProfiler profiler = interpreter.profiler;
+        LoxFunction caller = interpreter.function;
+        if (profiler != null) {
+            interpreter.function = this;
+            profiler.allocated(interpreter, declaration.name,
+                    AllocationProfiler.Kind.FRAME, 4L * declaration.frameSize);
+        }
 
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        int frame;
+        if (arguments == null) {
+            frame = interpreter.push(declaration.frameSize, count);
+        } else {
+            frame = interpreter.push(declaration.frameSize);
+            Object[] stack = interpreter.stack;
+            for (int i = 0; i < count; i++) {
+                stack[interpreter.base + i] = arguments.get(i);
+            }
         }
         // We wrap the call to executeBlock() in a try-catch block. When it catches a
         // return exception, it pulls out the value and makes that the return value from
@@ -33,9 +161,24 @@ public class LoxFunction implements LoxCallable {
         // reached the end of its body without hitting a return statement. In that case, it
         // implicitly returns nil .
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            if (body != null) {
+                // Running the statements here rather than through
+                // ClosureCompiler.execute() lets the JVM compile them into
+                // this method, where a Return thrown by one of them is a jump
+                // to the catch below. Had execute() been compiled on its own
+                // first, it would be too big to inline and every return would
+                // unwind a frame.
+                for (ClosureCompiler.StmtCode statement : body) {
+                    statement.exec(interpreter);
+                }
+            } else {
+                interpreter.executeBlock(declaration.body);
+            }
         } catch (Return returnValue) {
             return returnValue.value;
+        } finally {
+            interpreter.pop(frame);
+            interpreter.function = caller;
         }
         return null;
     }
@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// What calling a function that yields returns. Nothing in the body runs
+// until a value is asked for: next() runs it up to its next yield and
+// returns the value yielded, and done() says whether there is another one to
+// take. A consumer takes the values one at a time:
+//
+//   while (!done(numbers)) print next(numbers);
+//
+// and a generator that consumes another one hands each value on before it
+// asks for the next, so a chain of them holds one value at a time, however
+// long the sequence is.
+//
+// The body runs as IR on IrInterpreter's frames in every mode. Its frame is
+// on the heap, so at a yield it is simply left where it is, and resuming it
+// costs about what a call does. The frame is the generator's own, so its
+// locals keep their values from one resume to the next.
+//
+// Running off the end of the body, or returning, finishes the generator. The
+// value returned is dropped. So is the generator's frame, after a runtime
+// error in the body, which is raised from whichever next() or done() was
+// running it.
+class LoxGenerator {
+    private final String name;
+    // Null once the body has finished.
+    private IrInterpreter.Frame frame;
+    private boolean running = false;
+    // Set when done() has run the body ahead to a value that next() hasn't
+    // taken yet.
+    private boolean ready = false;
+    private Object value = null;
+
+    LoxGenerator(LoxFunction function, Interpreter interpreter, List<Object> arguments) {
+        Stmt.Function declaration = function.declaration();
+        Budget budget = interpreter.budget;
+        if (budget != null) {
+            budget.tick(declaration.name);
+            budget.allocateEnvironment();
+        }
+        this.name = declaration.name.lexeme;
+        this.frame = IrInterpreter.start(IrInterpreter.lower(declaration), arguments);
+    }
+
+    // Returns the next value, or nil once there are none left.
+    synchronized Object next(Interpreter interpreter) {
+        if (!advance(interpreter)) return null;
+        Object result = value;
+        ready = false;
+        value = null;
+        return result;
+    }
+
+    synchronized boolean done(Interpreter interpreter) {
+        return !advance(interpreter);
+    }
+
+    // Runs the body to its next yield, unless a value is already waiting,
+    // and returns whether there is one.
+    private boolean advance(Interpreter interpreter) {
+        if (ready) return true;
+        if (frame == null) return false;
+        if (running) throw new NativeError("Generator is already running.");
+
+        running = true;
+        try {
+            value = IrInterpreter.resume(frame, interpreter);
+            if (frame.yielded) {
+                ready = true;
+            } else {
+                frame = null;
+                value = null;
+            }
+        } catch (RuntimeException error) {
+            frame = null;
+            throw error;
+        } finally {
+            running = false;
+        }
+        return ready;
+    }
+
+    @Override
+    public String toString() {
+        return "<generator " + name + ">";
+    }
+}
@@ -0,0 +1,79 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// The runtime representation of a Lox list. As long as a list only ever holds
+// numbers, they are kept unboxed in a double[]. The first time anything else
+// is stored, the list switches over to an Object[] for good.
+class LoxList {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private double[] numbers = new double[INITIAL_CAPACITY];
+    private Object[] values = null;
+    private int count = 0;
+
+    int length() {
+        return count;
+    }
+
+    Object get(int index) {
+        checkIndex(index);
+        if (values == null) return numbers[index];
+        return values[index];
+    }
+
+    void set(int index, Object value) {
+        checkIndex(index);
+        if (values == null) {
+            if (value instanceof Double number) {
+                numbers[index] = number;
+                return;
+            }
+            generalize();
+        }
+        values[index] = value;
+    }
+
+    void append(Object value) {
+        if (values == null) {
+            if (value instanceof Double number) {
+                if (count == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, count * 2);
+                }
+                numbers[count++] = number;
+                return;
+            }
+            generalize();
+        }
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = value;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new NativeError("List index out of range.");
+        }
+    }
+
+    // Boxes the numbers into an Object[]. This only happens once per list.
+    private void generalize() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < count; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(get(i)));
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,244 @@
+package com.craftinginterpreters.lox;
+
+// The runtime representation of a Lox map: an open-addressing hash table with
+// linear probing, laid out as parallel arrays instead of one entry object per
+// key. Number keys are stored as raw bits in a long[] so they never need to
+// be boxed, and other keys carry their cached hash so that a probe only calls
+// equals() on a real candidate. Strings compare by identity first, which is
+// the common case for keys that come from the same literal.
+//
+// Keys match when Lox considers them equal, as in Interpreter.isEqual(). For
+// numbers that is Double.equals(), so the bits are canonicalized the same way.
+class LoxMap {
+    private static final byte EMPTY = 0;
+    private static final byte DELETED = 1;
+    private static final byte NUMBER = 2;
+    private static final byte OBJECT = 3;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private long[] numberKeys = new long[INITIAL_CAPACITY];
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+
+    private int count = 0;
+    private int deleted = 0;
+
+    // nil is a valid key in Lox, but it has no hash, so it gets its own slot.
+    private boolean hasNilKey = false;
+    private Object nilValue = null;
+
+    int length() {
+        return count + (hasNilKey ? 1 : 0);
+    }
+
+    Object get(Object key) {
+        if (key == null) return nilValue;
+        int slot = find(key);
+        return slot < 0 ? null : values[slot];
+    }
+
+    boolean has(Object key) {
+        if (key == null) return hasNilKey;
+        return find(key) >= 0;
+    }
+
+    void set(Object key, Object value) {
+        if (key == null) {
+            hasNilKey = true;
+            nilValue = value;
+            return;
+        }
+
+        // Grow before probing so the insertion slot stays valid. Deleted
+        // slots count as used, since they lengthen probe sequences too.
+        if ((count + deleted + 1) * 4 > kinds.length * 3) {
+            resize(count * 2 >= kinds.length ? kinds.length * 2 : kinds.length);
+        }
+
+        if (key instanceof Double number) {
+            long bits = Double.doubleToLongBits(number);
+            int hash = hashNumber(bits);
+            int mask = kinds.length - 1;
+            int tombstone = -1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                byte kind = kinds[i];
+                if (kind == EMPTY) {
+                    insert(tombstone >= 0 ? tombstone : i, NUMBER, bits, null, hash, value);
+                    return;
+                }
+                if (kind == DELETED) {
+                    if (tombstone < 0) tombstone = i;
+                } else if (kind == NUMBER && numberKeys[i] == bits) {
+                    values[i] = value;
+                    return;
+                }
+            }
+        }
+
+        int hash = hashObject(key);
+        int mask = kinds.length - 1;
+        int tombstone = -1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte kind = kinds[i];
+            if (kind == EMPTY) {
+                insert(tombstone >= 0 ? tombstone : i, OBJECT, 0, key, hash, value);
+                return;
+            }
+            if (kind == DELETED) {
+                if (tombstone < 0) tombstone = i;
+            } else if (kind == OBJECT && hashes[i] == hash &&
+                    (keys[i] == key || key.equals(keys[i]))) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    boolean remove(Object key) {
+        if (key == null) {
+            boolean had = hasNilKey;
+            hasNilKey = false;
+            nilValue = null;
+            return had;
+        }
+
+        int slot = find(key);
+        if (slot < 0) return false;
+
+        kinds[slot] = DELETED;
+        keys[slot] = null;
+        values[slot] = null;
+        count--;
+        deleted++;
+        return true;
+    }
+
+    LoxList keys() {
+        LoxList list = new LoxList();
+        if (hasNilKey) list.append(null);
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == NUMBER) {
+                list.append(Double.longBitsToDouble(numberKeys[i]));
+            } else if (kinds[i] == OBJECT) {
+                list.append(keys[i]);
+            }
+        }
+        return list;
+    }
+
+    // Returns the slot holding the key, or -1 if it isn't in the map.
+    private int find(Object key) {
+        int mask = kinds.length - 1;
+
+        if (key instanceof Double number) {
+            long bits = Double.doubleToLongBits(number);
+            for (int i = hashNumber(bits) & mask; ; i = (i + 1) & mask) {
+                byte kind = kinds[i];
+                if (kind == EMPTY) return -1;
+                if (kind == NUMBER && numberKeys[i] == bits) return i;
+            }
+        }
+
+        if (key instanceof String string) {
+            int hash = hashObject(string);
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                byte kind = kinds[i];
+                if (kind == EMPTY) return -1;
+                if (kind == OBJECT && hashes[i] == hash) {
+                    Object candidate = keys[i];
+                    if (candidate == string || string.equals(candidate)) return i;
+                }
+            }
+        }
+
+        int hash = hashObject(key);
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte kind = kinds[i];
+            if (kind == EMPTY) return -1;
+            if (kind == OBJECT && hashes[i] == hash && key.equals(keys[i])) return i;
+        }
+    }
+
+    private void insert(int slot, byte kind, long numberKey, Object key,
+                        int hash, Object value) {
+        if (kinds[slot] == DELETED) deleted--;
+        kinds[slot] = kind;
+        numberKeys[slot] = numberKey;
+        keys[slot] = key;
+        hashes[slot] = hash;
+        values[slot] = value;
+        count++;
+    }
+
+    // Rehashes every live entry into fresh arrays, which also drops the
+    // deleted slots.
+    private void resize(int capacity) {
+        byte[] oldKinds = kinds;
+        long[] oldNumberKeys = numberKeys;
+        Object[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        Object[] oldValues = values;
+
+        kinds = new byte[capacity];
+        numberKeys = new long[capacity];
+        keys = new Object[capacity];
+        hashes = new int[capacity];
+        values = new Object[capacity];
+        count = 0;
+        deleted = 0;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKinds.length; i++) {
+            byte kind = oldKinds[i];
+            if (kind != NUMBER && kind != OBJECT) continue;
+
+            int slot = oldHashes[i] & mask;
+            while (kinds[slot] != EMPTY) slot = (slot + 1) & mask;
+            insert(slot, kind, oldNumberKeys[i], oldKeys[i], oldHashes[i], oldValues[i]);
+        }
+    }
+
+    // Both hashes are run through a multiplicative mix because linear probing
+    // clusters badly on keys like consecutive integers.
+    private static int hashNumber(long bits) {
+        return mix((int) (bits ^ (bits >>> 32)));
+    }
+
+    private static int hashObject(Object key) {
+        return mix(key.hashCode());
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        boolean first = true;
+        if (hasNilKey) {
+            builder.append("nil: ").append(Interpreter.stringify(nilValue));
+            first = false;
+        }
+        for (int i = 0; i < kinds.length; i++) {
+            Object key;
+            if (kinds[i] == NUMBER) {
+                key = Double.longBitsToDouble(numberKeys[i]);
+            } else if (kinds[i] == OBJECT) {
+                key = keys[i];
+            } else {
+                continue;
+            }
+            if (!first) builder.append(", ");
+            builder.append(Interpreter.stringify(key)).append(": ")
+                    .append(Interpreter.stringify(values[i]));
+            first = false;
+        }
+        builder.append("}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+
+// A function running concurrently on its own virtual thread, created by the
+// spawn() native. The task gets its own Interpreter so that it has its own
+// current environment, but shares the globals and output with the script
+// that spawned it.
+//
+// A runtime error in the task is reported where it happens, just like one in
+// the main script. So is anything else that ends the task early, a stack
+// overflow or a bug in a native, as a runtime error on the function's name.
+// Joining a failed task then raises an error at the join.
+// Tasks still running when the script ends are abandoned.
+class LoxTask {
+    private final Thread thread;
+    private Object result;
+    private boolean failed = false;
+
+    LoxTask(Interpreter parent, LoxCallable function) {
+        Interpreter interpreter = parent.fork();
+        thread = Thread.ofVirtual().start(() -> {
+            try {
+                result = function.call(interpreter, new ArrayList<>());
+            } catch (RuntimeError error) {
+                fail(error);
+            } catch (StackOverflowError error) {
+                fail(new RuntimeError(name(function), "Stack overflow."));
+            } catch (NativeError error) {
+                fail(new RuntimeError(name(function), error.getMessage()));
+            } catch (Throwable error) {
+                fail(new RuntimeError(name(function), "Internal error: " + error));
+            }
+        });
+    }
+
+    private void fail(RuntimeError error) {
+        failed = true;
+        Lox.runtimeError(error);
+    }
+
+    // Natives have no name in the source, so an error in one spawned
+    // directly has no line to point at.
+    private static Token name(LoxCallable function) {
+        if (function instanceof LoxFunction lox) return lox.declaration().name;
+        return new Token(TokenType.IDENTIFIER, function.toString(), null, 0);
+    }
+
+    // Thread.join() makes the task's writes to result and failed visible here.
+    Object join() {
+        try {
+            thread.join();
+        } catch (InterruptedException error) {
+            throw new NativeError("Interrupted while joining task.");
+        }
+        if (failed) throw new NativeError("Joined task failed.");
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
@@ -0,0 +1,221 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Caches the results of pure functions, so that a recursion like fib's that
+// keeps computing the same calls takes linear time instead of exponential.
+// Enable it with -Dlox.memo=N to keep up to N results per function, dropping
+// the least recently used, and add -Dlox.memo.stats=true to have the hits
+// and misses of every cache printed when the script ends.
+//
+// A function is pure if its result depends only on its arguments and
+// calling it has no effect, which is decided in two steps the first time it
+// is called:
+//
+// - Its body mustn't print, assign to a global, declare a function or touch
+//   classes, and everything it calls must be named by a global.
+// - Every global the body reads, the functions it calls included, must be
+//   stable (see Environment), so that it is effectively a constant. Each
+//   function called must pass both steps too. Natives never do, since some
+//   have effects.
+//
+// The cache is dropped for good as soon as any of those globals changes.
+// Only calls whose arguments are all numbers, strings, booleans, nil or
+// functions are cached, since anything else could change between calls.
+final class Memo {
+    static final int SIZE = Integer.getInteger("lox.memo", 0);
+    static final boolean ENABLED = SIZE > 0;
+    private static final boolean STATS = Boolean.getBoolean("lox.memo.stats");
+
+    // Marks a function found to be impure.
+    static final Memo IMPURE = new Memo(null, List.of());
+
+    private static final ConcurrentLinkedQueue<Memo> all = new ConcurrentLinkedQueue<>();
+
+    private final LoxFunction function;
+    private final List<Environment.Stable> dependencies;
+    private final Map<Key, Object> results =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                    if (size() <= SIZE) return false;
+                    evictions++;
+                    return true;
+                }
+            };
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private Memo(LoxFunction function, List<Environment.Stable> dependencies) {
+        this.function = function;
+        this.dependencies = dependencies;
+    }
+
+    // The arguments of a call, compared by value.
+    private record Key(Object[] arguments) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && Arrays.equals(arguments, key.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(arguments);
+        }
+    }
+
+    // Returns the cache for the function, or IMPURE if it can't have one.
+    static Memo analyze(LoxFunction function, Interpreter interpreter) {
+        List<Environment.Stable> dependencies = new ArrayList<>();
+        if (!isPure(function, interpreter, new HashSet<>(), dependencies)) return IMPURE;
+        Memo memo = new Memo(function, dependencies);
+        if (STATS) all.add(memo);
+        return memo;
+    }
+
+    // Whether the function is pure, assuming that those already being
+    // checked are, and collecting the globals that it relies on.
+    private static boolean isPure(LoxFunction function, Interpreter interpreter,
+                                  Set<LoxFunction> checking,
+                                  List<Environment.Stable> dependencies) {
+        if (!checking.add(function)) return true;
+
+        Stmt.Function declaration = function.declaration();
+        // A function from a FlatAst has a declaration without a body.
+        if (declaration.body.isEmpty()) return false;
+        List<Token> globals = new ArrayList<>();
+        for (Stmt stmt : declaration.body) {
+            if (!isPure(stmt, globals)) return false;
+        }
+
+        for (Token name : globals) {
+            int index = interpreter.globals.find(name.lexeme);
+            Environment.Stable stable = index < 0 ? null : interpreter.globals.stable(index);
+            if (stable == null) return false;
+            dependencies.add(stable);
+            if (stable.value instanceof LoxFunction callee) {
+                if (!isPure(callee, interpreter, checking, dependencies)) return false;
+            } else if (stable.value instanceof LoxCallable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPure(Stmt stmt, List<Token> globals) {
+        return switch (stmt) {
+            case Stmt.Block block -> {
+                for (Stmt statement : block.statements) {
+                    if (!isPure(statement, globals)) yield false;
+                }
+                yield true;
+            }
+            case Stmt.Expression expression -> isPure(expression.expression, globals);
+            case Stmt.If ifStmt -> isPure(ifStmt.condition, globals) &&
+                    isPure(ifStmt.thenBranch, globals) &&
+                    (ifStmt.elseBranch == null || isPure(ifStmt.elseBranch, globals));
+            case Stmt.Return returnStmt ->
+                    returnStmt.value == null || isPure(returnStmt.value, globals);
+            case Stmt.Var var -> var.initializer == null || isPure(var.initializer, globals);
+            case Stmt.While whileStmt ->
+                    isPure(whileStmt.condition, globals) && isPure(whileStmt.body, globals);
+            case Stmt.Breakpoint breakpoint -> isPure(breakpoint.statement, globals);
+            // A nested function would be a new object on every call.
+            case Stmt.Class classStmt -> false;
+            case Stmt.Function function -> false;
+            case Stmt.Print print -> false;
+            case Stmt.Yield yieldStmt -> false;
+        };
+    }
+
+    private static boolean isPure(Expr expr, List<Token> globals) {
+        return switch (expr) {
+            case Expr.Assign assign -> assign.slot >= 0 && isPure(assign.value, globals);
+            case Expr.Binary binary ->
+                    isPure(binary.left, globals) && isPure(binary.right, globals);
+            case Expr.Call call -> {
+                // A function held in a local could be anything.
+                if (!(call.callee instanceof Expr.Variable callee) || callee.slot >= 0) {
+                    yield false;
+                }
+                globals.add(callee.name);
+                for (Expr argument : call.arguments) {
+                    if (!isPure(argument, globals)) yield false;
+                }
+                yield true;
+            }
+            case Expr.Grouping grouping -> isPure(grouping.expression, globals);
+            case Expr.Literal literal -> true;
+            case Expr.Logical logical ->
+                    isPure(logical.left, globals) && isPure(logical.right, globals);
+            case Expr.Unary unary -> isPure(unary.right, globals);
+            case Expr.Variable variable -> {
+                if (variable.slot < 0) globals.add(variable.name);
+                yield true;
+            }
+            case Expr.Get get -> false;
+            case Expr.Set set -> false;
+            case Expr.Super superExpr -> false;
+            case Expr.This thisExpr -> false;
+        };
+    }
+
+    // Whether the globals the function relies on still hold what they did
+    // when it was found pure.
+    boolean valid(Interpreter interpreter) {
+        for (Environment.Stable stable : dependencies) {
+            if (!stable.valid || stable.owner != interpreter.globals) return false;
+        }
+        return true;
+    }
+
+    Object call(Interpreter interpreter, List<Object> arguments) {
+        Object[] values = arguments.toArray();
+        for (Object value : values) {
+            if (!(value == null || value instanceof Double || value instanceof String ||
+                    value instanceof Boolean || value instanceof LoxFunction)) {
+                return function.invoke(interpreter, arguments);
+            }
+        }
+
+        Key key = new Key(values);
+        synchronized (this) {
+            if (results.containsKey(key)) {
+                hits++;
+                return results.get(key);
+            }
+            misses++;
+        }
+        // Other calls may go on while this one runs. If two compute the same
+        // result, both store it.
+        Object result = function.invoke(interpreter, arguments);
+        synchronized (this) {
+            results.put(key, result);
+        }
+        return result;
+    }
+
+    // Prints the metrics of every cache, if -Dlox.memo.stats is set.
+    static void report(PrintStream out) {
+        if (!STATS || all.isEmpty()) return;
+        out.println("Memoized functions:");
+        out.println(String.format("  %10s %10s %10s %8s  %s",
+                "hits", "misses", "evictions", "size", "function"));
+        for (Memo memo : all) {
+            synchronized (memo) {
+                out.println(String.format("  %10d %10d %10d %8d  %s",
+                        memo.hits, memo.misses, memo.evictions, memo.results.size(),
+                        memo.function));
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by natives to report a runtime error at the call site.
+public class NativeError extends RuntimeException {
+    public NativeError(String message) {
+        super(message);
+    }
+}
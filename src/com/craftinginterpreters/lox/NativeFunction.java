@@ -0,0 +1,64 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// A function implemented in Java. Natives can't see the call site's token, so
+// they report bad arguments by throwing a NativeError, which visitCallExpr()
+// turns into a RuntimeError on the call's closing paren.
+class NativeFunction implements LoxCallable {
+    interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    private final int arity;
+    private final Body body;
+
+    NativeFunction(int arity, Body body) {
+        this.arity = arity;
+        this.body = body;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+
+    // Argument checks shared by the native modules.
+
+    static String string(Object object) {
+        if (object instanceof String string) return string;
+        throw new NativeError("Operand must be a string.");
+    }
+
+    static double number(Object object) {
+        if (object instanceof Double number) return number;
+        throw new NativeError("Operand must be a number.");
+    }
+
+    static int index(Object object) {
+        if (object instanceof Double number && number == Math.floor(number) &&
+                number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) {
+            return (int) (double) number;
+        }
+        throw new NativeError("Index must be an integer.");
+    }
+
+    // Buffers can be longer than an int can index.
+    static long longIndex(Object object) {
+        if (object instanceof Double number && number == Math.floor(number) &&
+                number >= Long.MIN_VALUE && number < 0x1p63) {
+            return (long) (double) number;
+        }
+        throw new NativeError("Index must be an integer.");
+    }
+}
@@ -0,0 +1,27 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Set;
+
+// A library of native globals. Modules are found with ServiceLoader, so a jar
+// on the class path can add natives by listing its modules in
+// META-INF/services/com.craftinginterpreters.lox.NativeModule.
+//
+// Nothing is defined up front. The first time a script looks up a global
+// that doesn't exist, the module that provides it is asked to create it. A
+// script only pays for the natives it actually uses.
+public interface NativeModule {
+    // The names of the globals this module provides. This is called for every
+    // module the first time any native is needed, so it should be cheap.
+    Set<String> globals();
+
+    // Whether the module's globals exist at all. A module that hands
+    // scripts more power than the interpreter's limits can contain should
+    // only be on when the host asks for it.
+    default boolean enabled() {
+        return true;
+    }
+
+    // Creates the value of one of the globals. Values are shared by every
+    // interpreter in the JVM, so they must not hold per-script state.
+    Object create(String name);
+}
@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds the value of a native global on demand. Scripts that never miss a
+// global lookup never even scan for modules.
+class NativeModules {
+    private static volatile Map<String, NativeModule> index;
+    private static final Map<String, Object> created = new ConcurrentHashMap<>();
+
+    // Returns null if no module provides the name.
+    static Object load(String name) {
+        Object value = created.get(name);
+        if (value != null) return value;
+
+        NativeModule module = index().get(name);
+        if (module == null) return null;
+        return created.computeIfAbsent(name, module::create);
+    }
+
+    private static Map<String, NativeModule> index() {
+        Map<String, NativeModule> result = index;
+        if (result != null) return result;
+
+        synchronized (NativeModules.class) {
+            if (index == null) {
+                Map<String, NativeModule> modules = new HashMap<>();
+                for (NativeModule module : ServiceLoader.load(NativeModule.class)) {
+                    if (!module.enabled()) continue;
+                    for (String name : module.globals()) {
+                        // If two modules define the same name, the first
+                        // one found wins.
+                        modules.putIfAbsent(name, module);
+                    }
+                }
+                index = modules;
+            }
+            return index;
+        }
+    }
+}
@@ -11,10 +11,20 @@ public class Parser {
 
     private final List<Token> tokens;
     private int current = 0;
-
+    // Numbers the nodes for coverage, or null when coverage is off.
+    private final Coverage coverage;
+    // How many function bodies the parser is inside, and whether the
+    // innermost one has yielded so far.
+    private int functionDepth = 0;
+    private boolean yielded = false;
 
     public Parser(List<Token> tokens) {
+        this(tokens, null);
+    }
+
+    Parser(List<Token> tokens, Coverage coverage) {
         this.tokens = tokens;
+        this.coverage = coverage;
     }
 
     List<Stmt> parse() {
@@ -25,6 +35,17 @@ public class Parser {
         return statements;
     }
 
+    // Parses the one declaration that starts at the given token, for
+    // IncrementalDocument. Like parse(), returns null after a syntax error.
+    Stmt declarationAt(int index) {
+        current = index;
+        return declaration();
+    }
+
+    int position() {
+        return current;
+    }
+
     private Expr expression() {
         return assignment();
     }
@@ -51,7 +72,7 @@ public class Parser {
         while (match(OR)) {
             Token operator = previous();
             Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
+            expr = logical(expr, operator, right);
         }
         return expr;
     }
@@ -62,15 +83,31 @@ public class Parser {
         while (match(AND)) {
             Token operator = previous();
             Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+            expr = logical(expr, operator, right);
         }
         return expr;
     }
 
+    private Expr logical(Expr left, Token operator, Expr right) {
+        Expr.Logical logical = new Expr.Logical(left, operator, right);
+        if (coverage != null) coverage.number(logical);
+        return logical;
+    }
+
+    // Records the line the statement starts on, for the debugger, and gives
+    // the statement its ids for coverage.
+    private Stmt number(Stmt stmt, int line) {
+        if (stmt == null || stmt.line > 0) return stmt;
+        stmt.line = line;
+        if (coverage != null) coverage.number(stmt);
+        return stmt;
+    }
+
     private Stmt declaration() {
         try {
-            if (match(FUN)) return function("function");
-            if (match(VAR)) return varDeclaration();
+            int line = peek().line;
+            if (match(FUN)) return number(function("function"), line);
+            if (match(VAR)) return number(varDeclaration(), line);
             return statement();
         } catch (ParseError error) {
             synchronize();
@@ -79,27 +116,31 @@ public class Parser {
     }
 
     private Stmt statement() {
-        if (match(FOR)) return forStatement();
-        if (match(IF)) return ifStatement();
-        if (match(PRINT)) return printStatement();
-        if (match(RETURN)) return returnStatement();
-        if (match(WHILE)) return whileStatement();
+        int line = peek().line;
+        if (match(FOR)) return number(forStatement(), line);
+        if (match(IF)) return number(ifStatement(), line);
+        if (match(PRINT)) return number(printStatement(), line);
+        if (match(RETURN)) return number(returnStatement(), line);
+        if (match(WHILE)) return number(whileStatement(), line);
+        if (match(YIELD)) return number(yieldStatement(), line);
         // Like other statements, we detect the beginning of a block by its leading token—in this case the {
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
+        if (match(LEFT_BRACE)) return number(new Stmt.Block(block()), line);
 
-        return expressionStatement();
+        return number(expressionStatement(), line);
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after for.");
 
         Stmt initializer;
+        int initializerLine = peek().line;
         if (match(SEMICOLON)) {
             initializer = null;
         } else if (match(VAR)) {
-            initializer = varDeclaration();
+            initializer = number(varDeclaration(), initializerLine);
         } else {
-            initializer = expressionStatement();
+            initializer = number(expressionStatement(), initializerLine);
         }
 
         Expr condition = null;
@@ -109,6 +150,7 @@ public class Parser {
         consume(SEMICOLON, "Expect ';' after loop condition");
 
         Expr increment = null;
+        int incrementLine = peek().line;
         if (!check(RIGHT_PAREN)) {
             increment = expression();
         }
@@ -124,11 +166,11 @@ public class Parser {
             body = new Stmt.Block (
                 Arrays.asList(
                         body,
-                        new Stmt.Expression(increment)));
+                        number(new Stmt.Expression(increment), incrementLine)));
             }
 
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = number(new Stmt.While(keyword, condition, body), keyword.line);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -181,12 +223,25 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
+    }
+
+    private Stmt yieldStatement() {
+        Token keyword = previous();
+        if (functionDepth == 0) error(keyword, "Can't yield from top-level code.");
+        yielded = true;
+        Expr value = null;
+        if (!check(SEMICOLON)) {
+            value = expression();
+        }
+        consume(SEMICOLON, "Expect ';' after yield value.");
+        return new Stmt.Yield(keyword, value);
     }
 
     private Stmt expressionStatement() {
@@ -215,8 +270,20 @@ public class Parser {
         consume(RIGHT_PAREN, "Expect ')' after parameters");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body." );
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
+        // A function that yields anywhere in its own body, not counting the
+        // functions declared in it, is a generator. See LoxGenerator.
+        boolean enclosing = yielded;
+        functionDepth++;
+        yielded = false;
+        try {
+            List<Stmt> body = block();
+            Stmt.Function function = new Stmt.Function(name, parameters, body);
+            function.generator = yielded;
+            return function;
+        } finally {
+            functionDepth--;
+            yielded = enclosing;
+        }
     }
 
     private List<Stmt> block() {
@@ -399,7 +466,7 @@ public class Parser {
             if (previous().type == SEMICOLON) return;
 
             switch (peek().type) {
-                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN -> {
+                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN, YIELD -> {
                     return;
                 }
             }
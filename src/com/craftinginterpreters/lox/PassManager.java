@@ -0,0 +1,238 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Optimizes IR functions by running a pipeline of passes over each, again
+// and again until none of them changes anything. The passes are:
+//
+//   fold  folds operators on constants, branches on constants and phis that
+//         merge one value
+//   gvn   global value numbering: an operator or constant that repeats one
+//         in a block that dominates it is replaced by the earlier one
+//   dce   removes values that nothing uses and whose computation can't fail
+//   cfg   drops unreachable blocks and merges a block into its predecessor
+//         when it is that block's only successor and vice versa
+//
+// Pick the passes and their order with -Dlox.ir.passes=fold,gvn (the
+// default is all four, in the order above, and an empty list runs none).
+// Run with -Dlox.ir.dump=true to print each function to stderr once it is
+// optimized, and -Dlox.ir.verify=true to check the IR after every pass.
+final class PassManager {
+    interface Pass {
+        // Returns whether the pass changed the function.
+        boolean run(Ir.Function function);
+    }
+
+    private static final Map<String, Pass> PASSES = new LinkedHashMap<>();
+
+    static {
+        PASSES.put("fold", PassManager::fold);
+        PASSES.put("gvn", PassManager::gvn);
+        PASSES.put("dce", PassManager::dce);
+        PASSES.put("cfg", PassManager::cfg);
+    }
+
+    private static final String PIPELINE =
+            System.getProperty("lox.ir.passes", String.join(",", PASSES.keySet()));
+    private static final boolean DUMP = Boolean.getBoolean("lox.ir.dump");
+    private static final boolean VERIFY = Boolean.getBoolean("lox.ir.verify");
+
+    // The passes rarely need more than two rounds. This only guards against
+    // passes that keep undoing each other.
+    private static final int MAX_ROUNDS = 10;
+
+    private PassManager() {
+    }
+
+    // Returns the first name in lox.ir.passes that isn't a pass, or null.
+    static String unknownPass() {
+        for (String name : names()) {
+            if (!PASSES.containsKey(name)) return name;
+        }
+        return null;
+    }
+
+    private static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (String name : PIPELINE.split(",")) {
+            if (!name.isBlank()) names.add(name.trim());
+        }
+        return names;
+    }
+
+    static void optimize(Ir.Function function) {
+        List<Pass> pipeline = new ArrayList<>();
+        for (String name : names()) {
+            Pass pass = PASSES.get(name);
+            if (pass != null) pipeline.add(pass);
+        }
+
+        if (VERIFY) Ir.verify(function);
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = false;
+            for (Pass pass : pipeline) {
+                if (pass.run(function)) {
+                    changed = true;
+                    if (VERIFY) Ir.verify(function);
+                }
+            }
+            if (!changed) break;
+        }
+        function.renumber();
+
+        if (DUMP) {
+            synchronized (System.err) {
+                System.err.print(function.dump());
+            }
+        }
+    }
+
+    private static boolean fold(Ir.Function function) {
+        boolean changed = false;
+        for (Ir.Block block : function.blocks) {
+            for (int i = 0; i < block.instrs.size(); i++) {
+                Ir.Instr instr = block.instrs.get(i);
+                Object value;
+                try {
+                    if (instr instanceof Ir.Unary unary &&
+                            unary.operands.get(0) instanceof Ir.Const right) {
+                        value = Interpreter.unary(unary.operator, right.value);
+                    } else if (instr instanceof Ir.Binary binary &&
+                            binary.operands.get(0) instanceof Ir.Const left &&
+                            binary.operands.get(1) instanceof Ir.Const right) {
+                        value = Interpreter.binary(binary.operator, left.value, right.value);
+                    } else {
+                        continue;
+                    }
+                } catch (RuntimeError error) {
+                    // Left for the error to happen when the code runs.
+                    continue;
+                }
+                Ir.Const constant = function.replaceAt(block, i, new Ir.Const(value));
+                function.replaceUses(instr, constant);
+                changed = true;
+            }
+        }
+
+        boolean branches = false;
+        for (Ir.Block block : function.blocks) {
+            if (block.terminator instanceof Ir.Branch branch &&
+                    branch.operands.get(0) instanceof Ir.Const condition) {
+                boolean truthy = Interpreter.isTruthy(condition.value);
+                Ir.Block target = truthy ? branch.thenBlock : branch.elseBlock;
+                function.removeEdge(block, truthy ? branch.elseBlock : branch.thenBlock);
+                Ir.Jump jump = new Ir.Jump(target);
+                jump.block = block;
+                block.terminator = jump;
+                branches = true;
+            }
+        }
+        if (branches) function.removeUnreachable();
+
+        return IrBuilder.removeTrivialPhis(function) || branches || changed;
+    }
+
+    // The parts of an instruction that decide its value, besides its
+    // operands' values.
+    private record Key(Class<?> kind, Object detail, List<Ir.Instr> operands) {}
+
+    private static boolean gvn(Ir.Function function) {
+        Dominators dominators = Dominators.of(function);
+        Map<Key, Ir.Instr> available = new HashMap<>();
+        boolean[] changed = {false};
+        number(function, dominators, function.entry(), available, changed);
+        return changed[0];
+    }
+
+    // Walks the dominator tree, so that the values in the table when a block
+    // is visited are those of the blocks that dominate it.
+    private static void number(Ir.Function function, Dominators dominators, Ir.Block block,
+                               Map<Key, Ir.Instr> available, boolean[] changed) {
+        List<Key> added = new ArrayList<>();
+        for (int i = 0; i < block.instrs.size(); i++) {
+            Ir.Instr instr = block.instrs.get(i);
+            Key key = switch (instr) {
+                case Ir.Const constant -> new Key(Ir.Const.class, constant.value, List.of());
+                // The same operator on the same values gives the same value,
+                // or fails the same way the first time.
+                case Ir.Unary unary ->
+                        new Key(Ir.Unary.class, unary.operator.type, List.copyOf(unary.operands));
+                case Ir.Binary binary ->
+                        new Key(Ir.Binary.class, binary.operator.type, List.copyOf(binary.operands));
+                default -> null;
+            };
+            if (key == null) continue;
+
+            Ir.Instr existing = available.get(key);
+            if (existing != null) {
+                block.instrs.remove(i--);
+                function.replaceUses(instr, existing);
+                changed[0] = true;
+            } else {
+                available.put(key, instr);
+                added.add(key);
+            }
+        }
+
+        for (Ir.Block child : dominators.children(block)) {
+            number(function, dominators, child, available, changed);
+        }
+        for (Key key : added) available.remove(key);
+    }
+
+    private static boolean dce(Ir.Function function) {
+        // Marks what is needed, starting from the instructions with effects.
+        Set<Ir.Instr> live = new HashSet<>();
+        List<Ir.Instr> worklist = new ArrayList<>();
+        for (Ir.Block block : function.blocks) {
+            for (Ir.Instr instr : block.instrs) {
+                if (!instr.pure()) worklist.add(instr);
+            }
+            worklist.add(block.terminator);
+        }
+        while (!worklist.isEmpty()) {
+            Ir.Instr instr = worklist.remove(worklist.size() - 1);
+            if (!live.add(instr)) continue;
+            worklist.addAll(instr.operands);
+        }
+
+        boolean changed = false;
+        for (Ir.Block block : function.blocks) {
+            changed |= block.phis.removeIf(phi -> !live.contains(phi));
+            changed |= block.instrs.removeIf(instr -> !live.contains(instr));
+        }
+        return changed;
+    }
+
+    private static boolean cfg(Ir.Function function) {
+        boolean changed = function.removeUnreachable();
+        for (int i = 0; i < function.blocks.size(); i++) {
+            Ir.Block block = function.blocks.get(i);
+            // Blocks absorb their successors for as long as they can.
+            while (block.terminator instanceof Ir.Jump jump &&
+                    jump.target != function.entry() &&
+                    jump.target.predecessors.size() == 1) {
+                Ir.Block next = jump.target;
+                // With one predecessor, each phi has one operand.
+                for (Ir.Phi phi : next.phis) function.replaceUses(phi, phi.operands.get(0));
+                for (Ir.Instr instr : next.instrs) instr.block = block;
+                block.instrs.addAll(next.instrs);
+                block.terminator = next.terminator;
+                block.terminator.block = block;
+                for (Ir.Block successor : next.successors()) {
+                    successor.predecessors.replaceAll(
+                            predecessor -> predecessor == next ? block : predecessor);
+                }
+                function.blocks.remove(next);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
@@ -33,22 +33,47 @@ public class Scanner {
         keywords.put("true", TokenType.TRUE);
         keywords.put("var", TokenType.VAR);
         keywords.put("while", TokenType.WHILE);
+        keywords.put("yield", TokenType.YIELD);
     }
 
     Scanner(String source) {
         this.source = source;
     }
 
+    // Starts scanning partway through the source, which must be at the start
+    // of a token. Used by IncrementalDocument to rescan an edited region.
+    Scanner(String source, int offset, int line) {
+        this.source = source;
+        this.current = offset;
+        this.line = line;
+    }
+
     List<Token> scanTokens() {
         while (!isAtEnd()) {
             // We are at beginning of the next lexeme
             start = current;
             scanToken();
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line));
+        tokens.add(new Token(TokenType.EOF, "", null, line, current));
         return tokens;
     }
 
+    // Scans up to and including the next token and returns it, or the EOF
+    // token once the source runs out.
+    Token nextToken() {
+        int count = tokens.size();
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+            if (tokens.size() > count) return tokens.get(count);
+        }
+        return new Token(TokenType.EOF, "", null, line, current);
+    }
+
+    int position() {
+        return current;
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -115,7 +140,7 @@ public class Scanner {
 
     private void string() {
         while (peek() != '"' && !isAtEnd()) {
-            if (peek() != '\n') line++;
+            if (peek() == '\n') line++;
             advance();
         }
         if (isAtEnd()) {
@@ -177,6 +202,6 @@ public class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(new Token(type, text, literal, line, start));
     }
 }
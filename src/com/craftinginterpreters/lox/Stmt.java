@@ -3,7 +3,7 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt {
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
@@ -14,12 +14,36 @@ abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+    R visitBreakpointStmt(Breakpoint stmt);
+    R visitYieldStmt(Yield stmt);
+  }
+
+  static final int BLOCK = 0;
+  static final int CLASS = 1;
+  static final int EXPRESSION = 2;
+  static final int FUNCTION = 3;
+  static final int IF = 4;
+  static final int PRINT = 5;
+  static final int RETURN = 6;
+  static final int VAR = 7;
+  static final int WHILE = 8;
+  static final int BREAKPOINT = 9;
+  static final int YIELD = 10;
+
+  final int kind;
+
+  int id = -1;
+  int line;
+
+  private Stmt(int kind) {
+    this.kind = kind;
   }
 
   // Nested Stmt classes here...
 //> stmt-block
-  static class Block extends Stmt {
+  static final class Block extends Stmt {
     Block(List<Stmt> statements) {
+      super(BLOCK);
       this.statements = statements;
     }
 
@@ -32,10 +56,11 @@ abstract class Stmt {
   }
 //< stmt-block
 //> stmt-class
-  static class Class extends Stmt {
+  static final class Class extends Stmt {
     Class(Token name,
           Expr.Variable superclass,
           List<Stmt.Function> methods) {
+      super(CLASS);
       this.name = name;
       this.superclass = superclass;
       this.methods = methods;
@@ -52,8 +77,9 @@ abstract class Stmt {
   }
 //< stmt-class
 //> stmt-expression
-  static class Expression extends Stmt {
+  static final class Expression extends Stmt {
     Expression(Expr expression) {
+      super(EXPRESSION);
       this.expression = expression;
     }
 
@@ -66,8 +92,9 @@ abstract class Stmt {
   }
 //< stmt-expression
 //> stmt-function
-  static class Function extends Stmt {
+  static final class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
+      super(FUNCTION);
       this.name = name;
       this.params = params;
       this.body = body;
@@ -81,11 +108,16 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    int slot = -1;
+    int frameSize;
+    boolean generator;
   }
 //< stmt-function
 //> stmt-if
-  static class If extends Stmt {
+  static final class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      super(IF);
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
@@ -102,8 +134,9 @@ abstract class Stmt {
   }
 //< stmt-if
 //> stmt-print
-  static class Print extends Stmt {
+  static final class Print extends Stmt {
     Print(Expr expression) {
+      super(PRINT);
       this.expression = expression;
     }
 
@@ -116,8 +149,9 @@ abstract class Stmt {
   }
 //< stmt-print
 //> stmt-return
-  static class Return extends Stmt {
+  static final class Return extends Stmt {
     Return(Token keyword, Expr value) {
+      super(RETURN);
       this.keyword = keyword;
       this.value = value;
     }
@@ -132,8 +166,9 @@ abstract class Stmt {
   }
 //< stmt-return
 //> stmt-var
-  static class Var extends Stmt {
+  static final class Var extends Stmt {
     Var(Token name, Expr initializer) {
+      super(VAR);
       this.name = name;
       this.initializer = initializer;
     }
@@ -145,11 +180,15 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    int slot = -1;
   }
 //< stmt-var
 //> stmt-while
-  static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+  static final class While extends Stmt {
+    While(Token keyword, Expr condition, Stmt body) {
+      super(WHILE);
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -159,10 +198,45 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
     final Stmt body;
   }
 //< stmt-while
+//> stmt-breakpoint
+  static final class Breakpoint extends Stmt {
+    Breakpoint(Stmt statement) {
+      super(BREAKPOINT);
+      this.statement = statement;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBreakpointStmt(this);
+    }
+
+    final Stmt statement;
+
+    Debugger.Location location;
+  }
+//< stmt-breakpoint
+//> stmt-yield
+  static final class Yield extends Stmt {
+    Yield(Token keyword, Expr value) {
+      super(YIELD);
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitYieldStmt(this);
+    }
+
+    final Token keyword;
+    final Expr value;
+  }
+//< stmt-yield
 
   abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,61 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+// The same interpreter, but dispatching on each node's kind tag with a
+// switch instead of the accept() double dispatch. The tags are dense, so the
+// switch compiles to a tableswitch, and the cast in each arm is to a final
+// class. The visit methods themselves are shared, so the two can't drift
+// apart. Select it with -Dlox.mode=switch, and see DispatchBenchmark.
+class SwitchInterpreter extends Interpreter {
+    SwitchInterpreter(PrintStream out) {
+        super(out);
+    }
+
+    private SwitchInterpreter(Interpreter parent) {
+        super(parent);
+    }
+
+    @Override
+    Interpreter fork() {
+        return new SwitchInterpreter(this);
+    }
+
+    @Override
+    Object evaluate(Expr expr) {
+        return switch (expr.kind) {
+            case Expr.ASSIGN -> visitAssignExpr((Expr.Assign) expr);
+            case Expr.BINARY -> visitBinaryExpr((Expr.Binary) expr);
+            case Expr.CALL -> visitCallExpr((Expr.Call) expr);
+            case Expr.GET -> visitGetExpr((Expr.Get) expr);
+            case Expr.GROUPING -> visitGroupingExpr((Expr.Grouping) expr);
+            case Expr.LITERAL -> visitLiteralExpr((Expr.Literal) expr);
+            case Expr.LOGICAL -> visitLogicalExpr((Expr.Logical) expr);
+            case Expr.SET -> visitSetExpr((Expr.Set) expr);
+            case Expr.SUPER -> visitSuperExpr((Expr.Super) expr);
+            case Expr.THIS -> visitThisExpr((Expr.This) expr);
+            case Expr.UNARY -> visitUnaryExpr((Expr.Unary) expr);
+            case Expr.VARIABLE -> visitVariableExpr((Expr.Variable) expr);
+            default -> throw new IllegalStateException("Unknown expression kind " + expr.kind);
+        };
+    }
+
+    @Override
+    void execute(Stmt stmt) {
+        if (coverage != null) coverage.hit(stmt.id);
+        switch (stmt.kind) {
+            case Stmt.BLOCK -> visitBlockStmt((Stmt.Block) stmt);
+            case Stmt.CLASS -> visitClassStmt((Stmt.Class) stmt);
+            case Stmt.EXPRESSION -> visitExpressionStmt((Stmt.Expression) stmt);
+            case Stmt.FUNCTION -> visitFunctionStmt((Stmt.Function) stmt);
+            case Stmt.IF -> visitIfStmt((Stmt.If) stmt);
+            case Stmt.PRINT -> visitPrintStmt((Stmt.Print) stmt);
+            case Stmt.RETURN -> visitReturnStmt((Stmt.Return) stmt);
+            case Stmt.VAR -> visitVarStmt((Stmt.Var) stmt);
+            case Stmt.WHILE -> visitWhileStmt((Stmt.While) stmt);
+            case Stmt.BREAKPOINT -> visitBreakpointStmt((Stmt.Breakpoint) stmt);
+            case Stmt.YIELD -> visitYieldStmt((Stmt.Yield) stmt);
+            default -> throw new IllegalStateException("Unknown statement kind " + stmt.kind);
+        }
+    }
+}
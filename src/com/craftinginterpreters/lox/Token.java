@@ -5,12 +5,19 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // Where the lexeme starts in the source, or -1 for synthesized tokens.
+    final int offset;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int offset) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
     }
 
     public String toString() {
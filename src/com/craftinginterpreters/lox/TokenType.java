@@ -14,7 +14,7 @@ public enum TokenType {
 
     // keywords
     AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, BREAK, CONTINUE,
-    OR, PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
+    OR, PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, YIELD,
 
     EOF
 }
@@ -0,0 +1,218 @@
+package com.craftinginterpreters.lox;
+
+import java.util.BitSet;
+import java.util.List;
+
+// Finds the arithmetic and comparisons whose operands are always numbers, so
+// that the interpreter can skip checkNumberOperands() on them and go
+// straight to the arithmetic on doubles. Such a node gets numeric set.
+//
+// Only locals are tracked. Nothing but the code of its own function can
+// write a local, since functions don't see the locals around them (see
+// Locals), so following that code is enough to know every value a local can
+// hold. A global can be written by any call, a parameter can be passed
+// anything and a call can return anything, so none of them is ever known to
+// be a number.
+//
+// The analysis is flow-sensitive. Walking the code in the order it runs, it
+// keeps the set of slots that hold a number at each point:
+//
+// - A declaration or assignment puts the slot in the set if the value is
+//   known to be a number, and takes it out otherwise.
+// - Where paths meet, after an if or a Logical, only the slots in the set on
+//   every path stay in it.
+// - A loop is walked until the set at its condition stops shrinking.
+// - Once an operator that checks its operands has run, they are numbers, so
+//   a local used as one is put in the set. Then after "i < n" the code knows
+//   n is a number, even if it is a parameter.
+//
+// A number literal, and the result of any arithmetic but "+", is a number.
+// "+" is one if both its operands are. Which is all it takes to prove most
+// loop counters and the arithmetic on them. A node that can't be proven
+// keeps its checks and fails with the same RuntimeError as before.
+final class Types {
+    private Types() {
+    }
+
+    static void infer(List<Stmt> statements) {
+        statements(statements, new BitSet());
+    }
+
+    // Returns the slots holding numbers after the statements, or null if
+    // they never finish because they return.
+    private static BitSet statements(List<Stmt> statements, BitSet numbers) {
+        for (Stmt statement : statements) {
+            // The rest can't run. Its nodes keep their checks.
+            if (numbers == null) break;
+            numbers = statement(statement, numbers);
+        }
+        return numbers;
+    }
+
+    private static BitSet statement(Stmt stmt, BitSet numbers) {
+        return switch (stmt) {
+            case Stmt.Block block -> statements(block.statements, numbers);
+            case Stmt.Breakpoint breakpoint -> statement(breakpoint.statement, numbers);
+            case Stmt.Class classStmt -> numbers;
+            case Stmt.Expression expression -> {
+                expression(expression.expression, numbers);
+                yield numbers;
+            }
+            case Stmt.Function function -> {
+                // The body runs in a frame of its own.
+                statements(function.body, new BitSet());
+                set(numbers, function.slot, false);
+                yield numbers;
+            }
+            case Stmt.If ifStmt -> {
+                expression(ifStmt.condition, numbers);
+                BitSet thenBranch = statement(ifStmt.thenBranch, copy(numbers));
+                BitSet elseBranch = ifStmt.elseBranch != null
+                        ? statement(ifStmt.elseBranch, copy(numbers)) : numbers;
+                yield join(thenBranch, elseBranch);
+            }
+            case Stmt.Print print -> {
+                expression(print.expression, numbers);
+                yield numbers;
+            }
+            case Stmt.Return returnStmt -> {
+                if (returnStmt.value != null) expression(returnStmt.value, numbers);
+                yield null;
+            }
+            // The generator is suspended at a yield, but nothing else can
+            // write its locals in the meantime.
+            case Stmt.Yield yieldStmt -> {
+                if (yieldStmt.value != null) expression(yieldStmt.value, numbers);
+                yield numbers;
+            }
+            case Stmt.Var var -> {
+                boolean number = var.initializer != null && expression(var.initializer, numbers);
+                set(numbers, var.slot, number);
+                yield numbers;
+            }
+            case Stmt.While whileStmt -> {
+                // The first walk assumes the body keeps every number a
+                // number, and each walk after that starts from what the last
+                // one found. Nodes are marked on every walk, so the last,
+                // once the set holds, leaves each with the right answer.
+                BitSet head = numbers;
+                while (true) {
+                    BitSet condition = copy(head);
+                    expression(whileStmt.condition, condition);
+                    BitSet body = statement(whileStmt.body, copy(condition));
+                    BitSet next = join(numbers, body);
+                    if (next.equals(head)) yield condition;
+                    head = next;
+                }
+            }
+        };
+    }
+
+    // Returns whether the expression's value is always a number, updating
+    // the set for what it does.
+    private static boolean expression(Expr expr, BitSet numbers) {
+        return switch (expr) {
+            case Expr.Assign assign -> {
+                boolean number = expression(assign.value, numbers);
+                set(numbers, assign.slot, number);
+                yield number;
+            }
+            case Expr.Binary binary -> {
+                boolean left = expression(binary.left, numbers);
+                boolean right = expression(binary.right, numbers);
+                yield switch (binary.operator.type) {
+                    case PLUS -> {
+                        binary.numeric = left && right;
+                        yield left && right;
+                    }
+                    case MINUS, SLASH, STAR, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                        binary.numeric = left && right;
+                        // The left operand was read before the right one
+                        // ran, which could have assigned to it.
+                        if (!assigns(binary.right, slot(binary.left))) {
+                            set(numbers, slot(binary.left), true);
+                        }
+                        set(numbers, slot(binary.right), true);
+                        yield switch (binary.operator.type) {
+                            case MINUS, SLASH, STAR -> true;
+                            default -> false;
+                        };
+                    }
+                    default -> false;
+                };
+            }
+            case Expr.Call call -> {
+                expression(call.callee, numbers);
+                for (Expr argument : call.arguments) expression(argument, numbers);
+                yield false;
+            }
+            case Expr.Grouping grouping -> expression(grouping.expression, numbers);
+            case Expr.Literal literal -> literal.value instanceof Double;
+            case Expr.Logical logical -> {
+                boolean left = expression(logical.left, numbers);
+                // The right operand may not run.
+                BitSet right = copy(numbers);
+                boolean number = expression(logical.right, right) && left;
+                numbers.and(right);
+                yield number;
+            }
+            case Expr.Unary unary -> {
+                boolean right = expression(unary.right, numbers);
+                if (unary.operator.type != TokenType.MINUS) yield false;
+                unary.numeric = right;
+                set(numbers, slot(unary.right), true);
+                yield true;
+            }
+            case Expr.Variable variable -> variable.slot >= 0 && numbers.get(variable.slot);
+            // The interpreter doesn't evaluate these.
+            case Expr.Get get -> false;
+            case Expr.Set set -> false;
+            case Expr.Super superExpr -> false;
+            case Expr.This thisExpr -> false;
+        };
+    }
+
+    // The slot of the local the expression reads, or -1 if it isn't one.
+    private static int slot(Expr expr) {
+        while (expr instanceof Expr.Grouping grouping) expr = grouping.expression;
+        return expr instanceof Expr.Variable variable ? variable.slot : -1;
+    }
+
+    // Whether evaluating the expression could assign to the slot.
+    private static boolean assigns(Expr expr, int slot) {
+        if (slot < 0) return false;
+        return switch (expr) {
+            case Expr.Assign assign -> assign.slot == slot || assigns(assign.value, slot);
+            case Expr.Binary binary -> assigns(binary.left, slot) || assigns(binary.right, slot);
+            case Expr.Call call -> {
+                if (assigns(call.callee, slot)) yield true;
+                for (Expr argument : call.arguments) {
+                    if (assigns(argument, slot)) yield true;
+                }
+                yield false;
+            }
+            case Expr.Grouping grouping -> assigns(grouping.expression, slot);
+            case Expr.Logical logical -> assigns(logical.left, slot) || assigns(logical.right, slot);
+            case Expr.Unary unary -> assigns(unary.right, slot);
+            default -> false;
+        };
+    }
+
+    private static void set(BitSet numbers, int slot, boolean number) {
+        if (slot >= 0) numbers.set(slot, number);
+    }
+
+    private static BitSet copy(BitSet numbers) {
+        return (BitSet) numbers.clone();
+    }
+
+    // The slots that hold numbers on both paths. A path that returned
+    // doesn't count.
+    private static BitSet join(BitSet a, BitSet b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        BitSet both = copy(a);
+        both.and(b);
+        return both;
+    }
+}
@@ -14,13 +14,14 @@ public class GenerateAst {
         }
         String outputDir = args[0];
 //> call-define-ast
-        defineAst(outputDir, "Expr1", Arrays.asList(
+        defineAst(outputDir, "Expr", Arrays.asList(
 //> Statements and State assign-expr
-                "Assign   : Token name, Expr value",
+                "Assign   : Token name, Expr value | int slot = -1, int global = -1",
 //< Statements and State assign-expr
-                "Binary   : Expr left, Token operator, Expr right",
+                "Binary   : Expr left, Token operator, Expr right | boolean numeric",
 //> Functions call-expr
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
+                "Call     : Expr callee, Token paren, List<Expr> arguments" +
+                        " | Object inlineCache, int calls",
 //< Functions call-expr
 //> Classes get-ast
                 "Get      : Expr object, Token name",
@@ -28,7 +29,7 @@ public class GenerateAst {
                 "Grouping : Expr expression",
                 "Literal  : Object value",
 //> Control Flow logical-ast
-                "Logical  : Expr left, Token operator, Expr right",
+                "Logical  : Expr left, Token operator, Expr right | int id = -1",
 //< Control Flow logical-ast
 //> Classes set-ast
                 "Set      : Expr object, Token name, Expr value",
@@ -43,10 +44,11 @@ public class GenerateAst {
       "Unary    : Token operator, Expr right"
 */
 //> Statements and State var-expr
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Unary    : Token operator, Expr right | boolean numeric",
+                "Variable : Token name | int slot = -1, int global = -1," +
+                        " Environment.Stable stable"
 //< Statements and State var-expr
-        ));
+        ), "");
 //> Statements and State stmt-ast
 
         defineAst(outputDir, "Stmt", Arrays.asList(
@@ -63,7 +65,8 @@ public class GenerateAst {
                 "Expression : Expr expression",
 //> Functions function-ast
                 "Function   : Token name, List<Token> params," +
-                        " List<Stmt> body",
+                        " List<Stmt> body | int slot = -1, int frameSize," +
+                        " boolean generator",
 //< Functions function-ast
 //> Control Flow if-ast
                 "If         : Expr condition, Stmt thenBranch," +
@@ -82,16 +85,22 @@ public class GenerateAst {
       "Var        : Token name, Expr initializer"
 */
 //> Control Flow while-ast
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Var        : Token name, Expr initializer | int slot = -1",
+                "While      : Token keyword, Expr condition, Stmt body",
 //< Control Flow while-ast
-        ));
+                // Swapped in for a statement by the debugger. It comes last
+                // so that the other statements keep their tags.
+                "Breakpoint : Stmt statement | Debugger.Location location",
+                // After Breakpoint for the same reason.
+                "Yield      : Token keyword, Expr value"
+        ), "int id = -1, int line");
 //< Statements and State stmt-ast
 //< call-define-ast
     }
     //> define-ast
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, List<String> types,
+            String baseFields)
             throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -103,12 +112,15 @@ public class GenerateAst {
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        // Sealed, so that a switch over the node classes can be exhaustive.
+        writer.println("abstract sealed class " + baseName + " {");
 
 //> call-define-visitor
         defineVisitor(writer, baseName, types);
 
 //< call-define-visitor
+        defineKinds(writer, baseName, types, baseFields);
+
 //> omit
         writer.println();
         writer.println("  // Nested " + baseName + " classes here...");
@@ -118,7 +130,12 @@ public class GenerateAst {
         for (String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim(); // [robust]
-            defineType(writer, baseName, className, fields);
+            String extraFields = "";
+            if (fields.contains("|")) {
+                extraFields = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, extraFields);
         }
 //< nested-classes
 //> base-accept-method
@@ -149,15 +166,40 @@ public class GenerateAst {
         writer.println("  }");
     }
     //< define-visitor
+    // Every node class gets a dense integer tag, numbered in declaration
+    // order, for code that wants to dispatch with a tableswitch. Mutable
+    // fields that every node class needs go in the base class beside it.
+    private static void defineKinds(
+            PrintWriter writer, String baseName, List<String> types,
+            String baseFields) {
+        writer.println();
+        for (int i = 0; i < types.size(); i++) {
+            String typeName = types.get(i).split(":")[0].trim();
+            writer.println("  static final int " + typeName.toUpperCase() +
+                    " = " + i + ";");
+        }
+        writer.println();
+        writer.println("  final int kind;");
+        if (!baseFields.isEmpty()) {
+            writer.println();
+            for (String field : baseFields.split(", ")) {
+                writer.println("  " + field + ";");
+            }
+        }
+        writer.println();
+        writer.println("  private " + baseName + "(int kind) {");
+        writer.println("    this.kind = kind;");
+        writer.println("  }");
+    }
 //> define-type
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String extraFields) {
 //> omit
         writer.println("//> " +
                 baseName.toLowerCase() + "-" + className.toLowerCase());
 //< omit
-        writer.println("  static class " + className + " extends " +
+        writer.println("  static final class " + className + " extends " +
                 baseName + " {");
 
 //> omit
@@ -170,6 +212,7 @@ public class GenerateAst {
 //< omit
         // Constructor.
         writer.println("    " + className + "(" + fieldList + ") {");
+        writer.println("      super(" + className.toUpperCase() + ");");
 
 //> omit
         fieldList = fieldList.replace(",\n          ", ", ");
@@ -198,6 +241,14 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        // Mutable fields that aren't set by the constructor, such as caches
+        // the interpreter fills in at run time.
+        if (!extraFields.isEmpty()) {
+            writer.println();
+            for (String field : extraFields.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
 
         writer.println("  }");
 //> omit